@@ -0,0 +1,75 @@
+package com.jpm.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jpm.queue.Log;
+import com.jpm.queue.Message;
+import com.jpm.queue.MessageComparator;
+import com.jpm.queue.MessageComparator2;
+import com.jpm.queue.MessageQueue;
+import com.jpm.queue.QueueComparator;
+
+//Full sort of a shuffled backlog with each comparator, the work SortedQueueEngine does on every reorder
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ComparatorBenchmark {
+
+	@Param({"MessageComparator", "MessageComparator2"})
+	public String comparator;
+
+	@Param({"1000", "10000"})
+	public int size;
+
+	@Param({"100"})
+	public int groups;
+
+	private Comparator<Message> c;
+	private List<Message> messages;
+
+	@Setup
+	public void setup() throws Exception {
+		Log.logger.setLevel(Level.WARNING);
+		File backup = File.createTempFile("bench", ".bin");
+		backup.delete();
+		MessageQueue.setBackupFile(backup.getPath());
+		MessageQueue queue = MessageQueue.getQueue();
+		queue.clearProcessedGroupHistory();
+		for (int i = 0; i < groups / 2; i++) {
+			queue.addProcessedGroupID(i);
+		}
+		QueueComparator qc = "MessageComparator".equals(comparator) ? new MessageComparator() : new MessageComparator2();
+		qc.setQueue(queue);
+		c = qc;
+		Random random = new Random(42);
+		messages = new ArrayList<Message>(size);
+		//A millisecond apart, as a backlog built up over time would be
+		for (int i = 0; i < size; i++) {
+			messages.add(new Message("m" + i, random.nextInt(groups), false, i));
+		}
+		Collections.shuffle(messages, random);
+	}
+
+	@Benchmark
+	public List<Message> sort() {
+		List<Message> l = new ArrayList<Message>(messages);
+		Collections.sort(l, c);
+		return l;
+	}
+}
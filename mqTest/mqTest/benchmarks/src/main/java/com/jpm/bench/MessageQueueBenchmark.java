@@ -0,0 +1,93 @@
+package com.jpm.bench;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.jpm.queue.Log;
+import com.jpm.queue.Message;
+import com.jpm.queue.MessageQueue;
+
+//Single threaded cost of the queue operations against a standing backlog. Each add is paired with a poll so the
+//backlog stays the same size for the whole run.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageQueueBenchmark {
+
+	@Param({"com.jpm.queue.SortedQueueEngine", "com.jpm.queue.GroupedQueueEngine"})
+	public String engine;
+
+	@Param({"1000", "10000", "100000"})
+	public int backlog;
+
+	@Param({"10", "1000"})
+	public int groups;
+
+	//ordering.max.wait.ms, the standing backlog is overdue after the first second so 1000 measures aging at its busiest
+	@Param({"0", "1000"})
+	public long maxWait;
+
+	private MessageQueue queue;
+	private Random random;
+	private long nextGroup = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		Log.logger.setLevel(Level.WARNING);
+		//Keep away from any backup left in the working directory
+		File backup = File.createTempFile("bench", ".bin");
+		backup.delete();
+		MessageQueue.setBackupFile(backup.getPath());
+		queue = MessageQueue.getQueue();
+		queue.setComparator("com.jpm.queue.MessageComparator2");
+		queue.setEngine(engine);
+		queue.setMaxWait(maxWait);
+		queue.clear();
+		queue.clearCancelledGroupHistory();
+		queue.clearCompletedGroupHistory();
+		queue.clearProcessedGroupHistory();
+		random = new Random(42);
+		for (int i = 0; i < backlog; i++) {
+			queue.add(new Message("m" + i, i % groups));
+		}
+		//Start part way through so some groups have already been processed
+		for (int i = 0; i < groups / 2; i++) {
+			queue.addProcessedGroupID(i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		queue.clear();
+	}
+
+	@Benchmark
+	public Message addThenPoll() {
+		queue.add(new Message("m", random.nextInt(groups)));
+		return queue.pollFirst();
+	}
+
+	//Cancel the next group round and put its messages back so the backlog is unchanged
+	@Benchmark
+	public int cancelAndRefill() {
+		long groupID = nextGroup++ % groups;
+		int removed = queue.cancelMessageGroup(groupID);
+		queue.clearCancelledGroupHistory();
+		for (int i = 0; i < removed; i++) {
+			queue.add(new Message("r" + i, groupID));
+		}
+		return removed;
+	}
+}
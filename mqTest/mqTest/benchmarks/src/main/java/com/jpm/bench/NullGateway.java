@@ -0,0 +1,12 @@
+package com.jpm.bench;
+
+import com.jpm.queue.Message;
+import com.jpm.queue.SyncGateway;
+
+//Completes every message straight away so the benchmarks only measure the scheduler
+public class NullGateway extends SyncGateway {
+
+	@Override
+	protected void deliver(Message msg) {
+	}
+}
@@ -0,0 +1,86 @@
+package com.jpm.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.jpm.queue.AddResult;
+import com.jpm.queue.Message;
+import com.jpm.queue.MessageQueue;
+import com.jpm.queue.Scheduler;
+
+//Several producers adding through the Scheduler while its dispatcher drains the queue into the NullGateway,
+//one message at a time or in bursts of BATCH through addAllToQueue. Scores are messages either way.
+//Needs conf/ ahead of the jar on the classpath so the Scheduler picks up the benchmark properties.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = "-Xmx2g")
+public class SchedulerAddBenchmark {
+
+	private static final int BATCH = 1000;
+
+	@Param({"com.jpm.queue.SortedQueueEngine", "com.jpm.queue.GroupedQueueEngine"})
+	public String engine;
+
+	@Param({"100"})
+	public int groups;
+
+	private Scheduler scheduler;
+
+	@Setup
+	public void setup() {
+		scheduler = Scheduler.getInstance();
+		MessageQueue.getQueue().setEngine(engine);
+	}
+
+	//Producers can outrun the dispatcher, start each iteration from an empty queue
+	@TearDown(Level.Iteration)
+	public void drain() {
+		MessageQueue.getQueue().clear();
+	}
+
+	@State(Scope.Thread)
+	public static class Producer {
+		Random random = new Random();
+		int n = 0;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean add4(Producer p) {
+		return scheduler.addToQueue(new Message("m" + p.n++, p.random.nextInt(groups)));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean add1(Producer p) {
+		return scheduler.addToQueue(new Message("m" + p.n++, p.random.nextInt(groups)));
+	}
+
+	@Benchmark
+	@Threads(4)
+	@OperationsPerInvocation(BATCH)
+	public List<AddResult> addBatch4(Producer p) {
+		List<Message> batch = new ArrayList<Message>(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			batch.add(new Message("m" + p.n++, p.random.nextInt(groups)));
+		}
+		return scheduler.addAllToQueue(batch);
+	}
+}
@@ -0,0 +1,2 @@
+//Runs test1.bat to test5.bat, then the ingest endpoint round trip, on a virtual clock and checks each dispatch order
+java -cp schedulerTest.jar com.jpm.test.Simulation scenarios\test1.scn scenarios\test2.scn scenarios\test3.scn scenarios\test4.scn scenarios\test5.scn scenarios\ingest.scn
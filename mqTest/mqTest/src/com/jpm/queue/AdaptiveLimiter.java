@@ -0,0 +1,112 @@
+package com.jpm.queue;
+
+//Moves a shard's resource limit between min and max from the latency and failures of completed messages, in the
+//style of a gradient limiter. By Little's law the messages in flight are throughput times latency, so while latency
+//holds at its baseline more resources buy more throughput, and once it climbs the extra messages are only queueing
+//in the gateway. Each window the mean service latency is compared with a baseline of the best latency seen. Within
+//tolerance of it the limit grows by its square root to keep probing upwards, beyond it the limit is scaled down by
+//their ratio. A window with too many failures, retries or expired leases backs the limit off multiplicatively.
+//Only the shard's completion thread feeds samples in so the window needs no more than the monitor it already has.
+class AdaptiveLimiter {
+
+	//Latency may rise this far over the baseline before the limit comes down
+	private static final double TOLERANCE = 1.25;
+	//Share of the new estimate taken each window, keeps one noisy window from swinging the limit
+	private static final double SMOOTHING = 0.2;
+	//The baseline drops straight to a faster window. It only moves up, by this share of a slower one, once the limit is
+	//down at min, when the latency left is the gateway's own rather than queueing the limit has caused
+	private static final double BASELINE_DRIFT = 0.1;
+	//Fraction of a window's completions that may fail before backing off
+	private static final double FAILURE_THRESHOLD = 0.05;
+
+	private final ResourceManager resourceManager;
+	private final int min;
+	private final int max;
+	private final long window;
+	private final double backoff;
+	private double limit;
+	//Service latency with nothing queueing in the gateway, in ms
+	private double baseline = 0;
+	private long windowStart = 0;
+	private long windowLatency = 0;
+	private int samples = 0;
+	private int failures = 0;
+	private int maxInFlight = 0;
+	private volatile long adjustments = 0;
+
+	AdaptiveLimiter(ResourceManager resourceManager, int min, int max, long window, double backoff) {
+		this.resourceManager = resourceManager;
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.window = window;
+		this.backoff = backoff;
+		setLimit(resourceManager.getResources());
+	}
+
+	//A manual change moves the limit, which carries on adapting from there
+	synchronized void setLimit(int limit) {
+		this.limit = Math.max(min, Math.min(max, limit));
+		apply();
+	}
+
+	synchronized void sample(long latency, boolean failed, long now) {
+		if (samples == 0) {
+			windowStart = now;
+		}
+		samples++;
+		windowLatency += latency;
+		if (failed) {
+			failures++;
+		}
+		maxInFlight = Math.max(maxInFlight, resourceManager.getUsedResources());
+		if (now - windowStart >= window) {
+			adjust();
+			samples = 0;
+			windowLatency = 0;
+			failures = 0;
+			maxInFlight = 0;
+		}
+	}
+
+	private void adjust() {
+		double latency = Math.max(1.0, (double) windowLatency / samples);
+		if (baseline == 0 || latency < baseline) {
+			baseline = latency;
+		} else if (limit <= min) {
+			baseline += (latency - baseline) * BASELINE_DRIFT;
+		}
+		double target;
+		if (failures > samples * FAILURE_THRESHOLD) {
+			target = limit * backoff;
+		} else {
+			double gradient = TOLERANCE * baseline / latency;
+			if (gradient < 1.0) {
+				target = limit * Math.max(0.5, gradient);
+			} else if (maxInFlight < limit / 2) {
+				//Nothing is learnt about a higher limit while most of the current one is unused
+				target = limit;
+			} else {
+				target = limit + Math.sqrt(limit);
+			}
+		}
+		limit = Math.max(min, Math.min(max, limit + (target - limit) * SMOOTHING));
+		apply();
+	}
+
+	private void apply() {
+		int n = (int) Math.round(limit);
+		if (n != resourceManager.getResources()) {
+			resourceManager.setResources(n);
+			adjustments++;
+			Log.logger.fine("Resource limit now ["+n+"] latency baseline ["+Math.round(baseline)+"] ms");
+		}
+	}
+
+	synchronized double getBaseline() {
+		return baseline;
+	}
+
+	long getAdjustments() {
+		return adjustments;
+	}
+}
@@ -0,0 +1,15 @@
+package com.jpm.queue;
+
+//What happened to each message handed to MessageQueue.addAll()
+public enum AddResult {
+	ACCEPTED,
+	//The group has already had its last message
+	REJECTED_COMPLETED,
+	REJECTED_CANCELLED,
+	//The queue is shutting down
+	REJECTED_SHUTDOWN,
+	//The queue or the group is at capacity, see Overflow
+	REJECTED_FULL,
+	//A message with the same idempotency key is queued, with the gateway or was delivered recently
+	DUPLICATE
+}
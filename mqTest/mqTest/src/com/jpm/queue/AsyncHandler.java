@@ -0,0 +1,128 @@
+package com.jpm.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+//Log handler that queues records in a bounded buffer for a background thread to write to the real handlers.
+//Once the buffer is three quarters full only one in SAMPLE records below WARNING is kept, and anything below
+//WARNING that does not fit is dropped. Warnings and errors wait for space rather than being lost.
+//The writer logs how many records were dropped since its last report.
+public class AsyncHandler extends Handler {
+
+	private static final int SAMPLE = 16;
+
+	private final ArrayBlockingQueue<LogRecord> buffer;
+	private final int sampleAbove;
+	private final List<Handler> targets = new ArrayList<Handler>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong sampled = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	public AsyncHandler(int size) {
+		buffer = new ArrayBlockingQueue<LogRecord>(size);
+		sampleAbove = size - size / 4;
+		writer = new Thread() {
+			public void run() {
+				write();
+			}
+		};
+		writer.setName("LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public synchronized void addTarget(Handler h) {
+		targets.add(h);
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record)) {
+			return;
+		}
+		//The caller is worked out lazily from the stack so it has to be done on this thread
+		record.getSourceClassName();
+		if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+			try {
+				buffer.put(record);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		if (buffer.size() >= sampleAbove && sampled.incrementAndGet() % SAMPLE != 0) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void write() {
+		List<LogRecord> batch = new ArrayList<LogRecord>();
+		long reported = 0;
+		while (!closed || !buffer.isEmpty()) {
+			try {
+				LogRecord r = buffer.poll(100, TimeUnit.MILLISECONDS);
+				if (null != r) {
+					batch.add(r);
+					buffer.drainTo(batch);
+				}
+			} catch (InterruptedException e) {
+				//Closing, finish off what is left
+				buffer.drainTo(batch);
+			}
+			long d = dropped.get();
+			if (d != reported) {
+				batch.add(new LogRecord(Level.WARNING, "Log buffer full, dropped [" + (d - reported) + "] records"));
+				reported = d;
+			}
+			if (!batch.isEmpty()) {
+				synchronized (this) {
+					for (LogRecord r : batch) {
+						for (Handler h : targets) {
+							h.publish(r);
+						}
+					}
+					for (Handler h : targets) {
+						h.flush();
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		//Records are flushed by the writer as each batch is written
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Handler h : targets) {
+				h.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.jpm.queue;
+
+import java.util.List;
+
+//A gateway that can take several messages of one group in a single call. Used when dispatch.batch.size is
+//more than 1, otherwise only send() is called.
+public interface BatchGateway extends Gateway {
+
+	//Hand over messages from the same group in dispatch order. The batch holds a single resource which is freed
+	//once completed() has been called on every message. Throwing an exception fails the whole batch.
+	public void sendBatch(List<Message> msgs) throws Exception;
+}
@@ -0,0 +1,14 @@
+package com.jpm.queue;
+
+//Source of the time used by the queue to decide how long a message has waited, replaced by a virtual clock in the
+//simulation so the same ordering decisions are made without real waiting
+public interface Clock {
+
+	public static final Clock SYSTEM = new Clock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	public long currentTimeMillis();
+}
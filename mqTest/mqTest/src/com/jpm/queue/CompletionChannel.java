@@ -0,0 +1,54 @@
+package com.jpm.queue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+//Carries completed messages from the gateway threads to the shard's completion thread without either side taking a
+//lock. Gateway threads push onto a stack linked through the messages themselves so posting never allocates, and the
+//consumer swaps the whole stack out in one go and reverses it to get the completions in the order they were posted.
+class CompletionChannel {
+
+	private final AtomicReference<Message> head = new AtomicReference<Message>();
+	private volatile Thread consumer = null;
+
+	void setConsumer(Thread consumer) {
+		this.consumer = consumer;
+	}
+
+	//Never blocks. The consumer only needs waking when the stack was empty, otherwise it has a drain still to come.
+	void post(Message msg) {
+		Message h;
+		do {
+			h = head.get();
+			msg.nextCompleted = h;
+		} while (!head.compareAndSet(h, msg));
+		if (null == h) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	//Waits for at least one completion and returns everything posted so far, oldest first, linked by nextCompleted
+	Message take() throws InterruptedException {
+		Message m;
+		while (null == (m = poll())) {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return m;
+	}
+
+	//As take() but returns null straight away if nothing has been posted
+	Message poll() {
+		Message m = head.getAndSet(null);
+		Message previous = null;
+		while (null != m) {
+			Message next = m.nextCompleted;
+			m.nextCompleted = previous;
+			previous = m;
+			m = next;
+		}
+		return previous;
+	}
+}
@@ -0,0 +1,18 @@
+package com.jpm.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Messages sent to the gateway together on one resource, which is freed when the last of them finishes
+class DispatchBatch {
+
+	private final AtomicInteger remaining;
+
+	DispatchBatch(int size) {
+		remaining = new AtomicInteger(size);
+	}
+
+	//Returns true for the last message in the batch to finish
+	boolean finished() {
+		return remaining.decrementAndGet() == 0;
+	}
+}
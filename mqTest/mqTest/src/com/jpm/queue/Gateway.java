@@ -0,0 +1,22 @@
+package com.jpm.queue;
+
+import java.util.Properties;
+
+//The downstream system messages are handed to once a resource is free. The implementation is named by the
+//gateway.class property and is created once when the Scheduler starts.
+public interface Gateway {
+
+	//Called once with the scheduler properties before any message is sent
+	public void init(Properties properties) throws Exception;
+
+	//Hand over the message. This may return straight away and finish the work on another thread but
+	//msg.completed() must be called once the message has been processed so its resource is freed, or
+	//msg.completed(Outcome) to report a failure or ask for the message to be sent again. Neither call blocks.
+	//If dispatch.lease.ms is set and the message is held longer than that, the resource is taken back and the message
+	//may be sent again. Read msg.getAttempt() here and complete with msg.completed(attempt, outcome) so a late call for
+	//this send is ignored, completed() and completed(Outcome) count for whichever send is the latest.
+	//Throwing an exception reports this message as failed and frees the resource straight away.
+	//msg.getSlot() says which resource the message holds, so a gateway keeping a connection or session per resource
+	//can use that one. A group is given the same slot again while it is free, see resources.affinity.
+	public void send(Message msg) throws Exception;
+}
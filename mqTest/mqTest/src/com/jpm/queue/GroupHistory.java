@@ -0,0 +1,235 @@
+package com.jpm.queue;
+
+import java.util.Arrays;
+
+//Set of groupIDs kept in least recently used order, used for the processed, cancelled and completed history.
+//With a maximum size or a time to live trim() drops the oldest groups in batches, apart from any the Pin says are
+//still in use, which count as used again. Groups are looked up through an open addressing table of primitive longs
+//so contains() never boxes.
+//Not thread safe, MessageQueue locks each history the way it locked the sets they replaced.
+public class GroupHistory {
+
+	//Groups the history must keep however old they are
+	public interface Pin {
+		public boolean isPinned(long groupID);
+	}
+
+	private static final int NONE = -1;
+
+	private int maxEntries = 0;
+	private long ttl = 0;
+	private Pin pin = null;
+	//Lookup table from groupID to node, a node of 0 is an empty slot and n is node n-1
+	private long[] tableKeys = new long[32];
+	private int[] tableNodes = new int[32];
+	private int mask = 31;
+	//Nodes in a doubly linked list from head, the least recently used, to tail
+	private long[] groups = new long[16];
+	private long[] touched = new long[16];
+	private int[] prev = new int[16];
+	private int[] next = new int[16];
+	private int head = NONE;
+	private int tail = NONE;
+	private int free = NONE;
+	private int used = 0;
+	private int size = 0;
+	private long evicted = 0;
+
+	//0 for either means no limit
+	public void setRetention(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+	}
+
+	public void setPin(Pin pin) {
+		this.pin = pin;
+	}
+
+	public boolean contains(long groupID) {
+		return find(groupID) >= 0;
+	}
+
+	//Adds the group or marks it as just used if it is already there. Returns true if it was not already there.
+	public boolean add(long groupID) {
+		long now = ttl > 0 ? System.currentTimeMillis() : 0;
+		int i = find(groupID);
+		if (i >= 0) {
+			touch(tableNodes[i] - 1, now);
+			return false;
+		}
+		int node = allocate();
+		groups[node] = groupID;
+		touched[node] = now;
+		link(node);
+		insert(groupID, node);
+		size++;
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(tableNodes, 0);
+		head = tail = free = NONE;
+		used = 0;
+		size = 0;
+	}
+
+	//Number of groups dropped by the retention policy
+	public long getEvicted() {
+		return evicted;
+	}
+
+	//The groups from least to most recently used
+	public long[] toArray() {
+		long[] a = new long[size];
+		int n = 0;
+		for (int node = head; node != NONE; node = next[node]) {
+			a[n++] = groups[node];
+		}
+		return a;
+	}
+
+	//Once over the limit drop back a sixteenth below it so the work is done in batches rather than on every add.
+	//The list is in the order groups were last used so expired groups are always at the head.
+	public void trim() {
+		long now = ttl > 0 ? System.currentTimeMillis() : 0;
+		boolean full = maxEntries > 0 && size > maxEntries;
+		long cutoff = ttl > 0 ? now - ttl : Long.MIN_VALUE;
+		if (!full && (head == NONE || touched[head] >= cutoff)) {
+			return;
+		}
+		int target = full ? maxEntries - maxEntries / 16 : size;
+		int checked = 0;
+		int n = size;
+		int node = head;
+		while (node != NONE && checked++ < n && (size > target || touched[node] < cutoff)) {
+			int following = next[node];
+			if (null != pin && pin.isPinned(groups[node])) {
+				touch(node, now);
+			} else {
+				remove(node);
+				evicted++;
+			}
+			node = following;
+		}
+	}
+
+	private void touch(int node, long now) {
+		touched[node] = now;
+		if (node != tail) {
+			unlink(node);
+			link(node);
+		}
+	}
+
+	private void remove(int node) {
+		int i = find(groups[node]);
+		tableNodes[i] = 0;
+		closeGap(i);
+		unlink(node);
+		next[node] = free;
+		free = node;
+		size--;
+	}
+
+	private int allocate() {
+		if (free != NONE) {
+			int node = free;
+			free = next[node];
+			return node;
+		}
+		if (used == groups.length) {
+			int capacity = used << 1;
+			groups = Arrays.copyOf(groups, capacity);
+			touched = Arrays.copyOf(touched, capacity);
+			prev = Arrays.copyOf(prev, capacity);
+			next = Arrays.copyOf(next, capacity);
+		}
+		return used++;
+	}
+
+	//Add to the tail as the most recently used
+	private void link(int node) {
+		prev[node] = tail;
+		next[node] = NONE;
+		if (tail == NONE) {
+			head = node;
+		} else {
+			next[tail] = node;
+		}
+		tail = node;
+	}
+
+	private void unlink(int node) {
+		if (prev[node] == NONE) {
+			head = next[node];
+		} else {
+			next[prev[node]] = next[node];
+		}
+		if (next[node] == NONE) {
+			tail = prev[node];
+		} else {
+			prev[next[node]] = prev[node];
+		}
+	}
+
+	//Table slot holding the group or -1
+	private int find(long groupID) {
+		for (int i = LongHashSet.hash(groupID) & mask; tableNodes[i] != 0; i = (i + 1) & mask) {
+			if (tableKeys[i] == groupID) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long groupID, int node) {
+		if ((size + 1) * 2 > tableKeys.length) {
+			rehash(tableKeys.length << 1);
+		}
+		int i = LongHashSet.hash(groupID) & mask;
+		while (tableNodes[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		tableKeys[i] = groupID;
+		tableNodes[i] = node + 1;
+	}
+
+	//Same backward shift as LongHashSet so lookups never need tombstones
+	private void closeGap(int gap) {
+		for (int i = (gap + 1) & mask; tableNodes[i] != 0; i = (i + 1) & mask) {
+			int home = LongHashSet.hash(tableKeys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				tableKeys[gap] = tableKeys[i];
+				tableNodes[gap] = tableNodes[i];
+				tableNodes[i] = 0;
+				gap = i;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = tableKeys;
+		int[] oldNodes = tableNodes;
+		tableKeys = new long[capacity];
+		tableNodes = new int[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldNodes[j] != 0) {
+				int i = LongHashSet.hash(oldKeys[j]) & mask;
+				while (tableNodes[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				tableKeys[i] = oldKeys[j];
+				tableNodes[i] = oldNodes[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package com.jpm.queue;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+//Queue engine that keeps a FIFO backlog per groupID and an ordered index of the groups rather than sorting every message.
+//Dispatch order matches MessageComparator: the lastGroupID backlog first, then processed groups, then new groups,
+//with groups in each of those tiers ordered by the age of their oldest message.
+//add() is O(1) unless the message becomes the head of its group and pollFirst() is O(log g) for g queued groups.
+//When the queue has a SpillStore the tail of each group's backlog goes to disk once the heap limit is reached.
+public class GroupedQueueEngine implements QueueEngine {
+
+	private MessageQueue queue = null;
+	private SpillStore spill = null;
+	//Messages held on the heap and their rough size, the rest of size is in the spill store
+	private long heapMessages = 0;
+	private long heapBytes = 0;
+	//Backlog for every group that has messages queued
+	private Map<Long, GroupBacklog> groups = new HashMap<Long, GroupBacklog>();
+	//Groups other than lastGroupID that have queued messages, ordered by their head message
+	private TreeSet<GroupBacklog> processed = new TreeSet<GroupBacklog>(new HeadOrder());
+	private TreeSet<GroupBacklog> fresh = new TreeSet<GroupBacklog>(new HeadOrder());
+	private int size = 0;
+	//Footprint of every queued message, spilled or not
+	private long bytes = 0;
+
+	public void setQueue(MessageQueue queue) {
+		this.queue = queue;
+		spill = queue.getSpill();
+	}
+
+	//The ordering is fixed so an alternative comparator has no effect on this engine
+	public void setComparator(Comparator<Message> comparator) {
+		if (!(comparator instanceof MessageComparator) && !(comparator instanceof MessageComparator2)) {
+			Log.logger.warning("GroupedQueueEngine ignores comparator ["+comparator.getClass().getName()+"]");
+		}
+	}
+
+	public boolean add(Message msg) {
+		GroupBacklog g = groups.get(msg.getGroupID());
+		if (null == g) {
+			g = new GroupBacklog(msg.getGroupID());
+			groups.put(msg.getGroupID(), g);
+		}
+		size++;
+		long footprint = SpillStore.footprint(msg);
+		bytes += footprint;
+		g.bytes += footprint;
+		if (null != spill && spill(g, msg)) {
+			return true;
+		}
+		heapAdded(msg);
+		if (g.messages.isEmpty() || compareMessages(msg, g.messages.peekFirst()) < 0) {
+			//The head of the group changes so its position in the index has to be refreshed
+			unindex(g);
+			g.insert(msg);
+			index(g);
+		} else {
+			g.insert(msg);
+		}
+		return true;
+	}
+
+	//Writes the message to the spill store if the heap is full and it belongs at the end of a group that already has
+	//keep messages in memory. Once a group has spilled everything after it has to go the same way to stay in order.
+	private boolean spill(GroupBacklog g, Message msg) {
+		if (g.spilled.isEmpty()) {
+			if (g.messages.size() < spill.getKeep() || !spill.isFull(heapMessages, heapBytes)
+					|| compareMessages(g.messages.peekLast(), msg) > 0) {
+				return false;
+			}
+		} else if (!g.messages.isEmpty() && compareMessages(g.messages.peekLast(), msg) > 0) {
+			//Belongs among the messages in memory, such as a retry going back to the head of the group
+			return false;
+		} else if (compareMessages(g.lastSpilled, msg) > 0) {
+			//Out of order behind the spilled tail, bring the tail back so the message can be inserted in place
+			pageIn(g, Integer.MAX_VALUE);
+			return false;
+		}
+		try {
+			g.spilled.add(spill.write(msg));
+			g.lastSpilled = msg;
+			return true;
+		} catch (IOException e) {
+			Log.logger.severe("Cannot spill message for groupID["+msg.getGroupID()+"], keeping it in memory Error["+e.getMessage()+"]");
+			pageIn(g, Integer.MAX_VALUE);
+			return false;
+		}
+	}
+
+	//Read up to max of the group's spilled messages back onto the end of its in memory backlog
+	private void pageIn(GroupBacklog g, int max) {
+		for (int i = 0; i < max && !g.spilled.isEmpty(); i++) {
+			try {
+				Message msg = spill.read(g.spilled.poll());
+				g.messages.addLast(msg);
+				heapAdded(msg);
+			} catch (IOException e) {
+				//Still in the journal so it comes back on the next restart
+				Log.logger.severe("Lost a spilled message for groupID["+g.groupID+"] Error["+e.getMessage()+"]");
+				size--;
+				if (g.spilled.isEmpty()) {
+					//Its size is not known so settle the group's total once it has nothing left on disk
+					bytes -= g.bytes;
+					g.bytes = 0;
+					for (Message m : g.messages) {
+						g.bytes += SpillStore.footprint(m);
+					}
+					bytes += g.bytes;
+				}
+			}
+		}
+		if (g.spilled.isEmpty()) {
+			g.lastSpilled = null;
+		}
+	}
+
+	private void heapAdded(Message msg) {
+		heapMessages++;
+		if (null != spill) {
+			heapBytes += SpillStore.footprint(msg);
+		}
+	}
+
+	private void heapRemoved(Message msg) {
+		heapMessages--;
+		if (null != spill) {
+			heapBytes -= SpillStore.footprint(msg);
+		}
+	}
+
+	public Message pollFirst() {
+		GroupBacklog g = nextGroup();
+		return null == g ? null : poll(g);
+	}
+
+	public Message pollFirst(long groupID) {
+		GroupBacklog g = nextGroup();
+		return null == g || g.groupID != groupID ? null : poll(g);
+	}
+
+	public Message pollGroupHead(long groupID) {
+		GroupBacklog g = groups.get(groupID);
+		return null == g ? null : poll(g);
+	}
+
+	//The group the next message comes from, null if there is nothing queued
+	private GroupBacklog nextGroup() {
+		GroupBacklog g = groups.get(queue.lastGroupID);
+		if (null == g) {
+			if (!processed.isEmpty()) {
+				g = processed.first();
+			} else if (!fresh.isEmpty()) {
+				g = fresh.first();
+			}
+		}
+		return g;
+	}
+
+	private Message poll(GroupBacklog g) {
+		unindex(g);
+		Message msg = g.messages.pollFirst();
+		size--;
+		long footprint = SpillStore.footprint(msg);
+		bytes -= footprint;
+		g.bytes -= footprint;
+		heapRemoved(msg);
+		//Keep the head of the group in memory as it gets closer to dispatch
+		if (!g.spilled.isEmpty() && g.messages.size() <= spill.getKeep() / 2) {
+			pageIn(g, spill.getKeep() - g.messages.size());
+		}
+		if (g.messages.isEmpty()) {
+			groups.remove(g.groupID);
+		} else {
+			index(g);
+		}
+		return msg;
+	}
+
+	public void lastGroupChanged(long previousGroupID) {
+		//The previous group now sits with the other processed groups
+		GroupBacklog g = groups.get(previousGroupID);
+		if (null != g) {
+			unindex(g);
+			index(g);
+		}
+		//The new group is always served first so it does not need to be in the index
+		g = groups.get(queue.lastGroupID);
+		if (null != g) {
+			unindex(g);
+		}
+	}
+
+	public void processedHistoryCleared() {
+		processed.clear();
+		fresh.clear();
+		for (GroupBacklog g : groups.values()) {
+			g.index = null;
+			index(g);
+		}
+	}
+
+	public int removeGroup(long groupID) {
+		GroupBacklog g = groups.remove(groupID);
+		if (null == g) {
+			return 0;
+		}
+		unindex(g);
+		int removed = g.messages.size() + g.spilled.size();
+		size -= removed;
+		bytes -= g.bytes;
+		for (Message msg : g.messages) {
+			heapRemoved(msg);
+		}
+		release(g);
+		return removed;
+	}
+
+	private void release(GroupBacklog g) {
+		while (!g.spilled.isEmpty()) {
+			try {
+				spill.release(g.spilled.poll());
+			} catch (IOException e) {
+				Log.logger.severe("Error releasing a spilled message for groupID["+g.groupID+"] Error["+e.getMessage()+"]");
+			}
+		}
+		g.lastSpilled = null;
+	}
+
+	//Every group other than lastGroupID is in an index ordered by its head so only three heads need comparing
+	public Message oldest() {
+		GroupBacklog last = groups.get(queue.lastGroupID);
+		Message m = null == last ? null : last.messages.peekFirst();
+		return older(older(m, processed), fresh);
+	}
+
+	private static Message older(Message m, TreeSet<GroupBacklog> index) {
+		if (index.isEmpty()) {
+			return m;
+		}
+		Message head = index.first().messages.peekFirst();
+		return null == m || compareMessages(head, m) < 0 ? head : m;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int groupSize(long groupID) {
+		GroupBacklog g = groups.get(groupID);
+		return null == g ? 0 : g.messages.size() + g.spilled.size();
+	}
+
+	public int groupCount() {
+		return groups.size();
+	}
+
+	public long bytes() {
+		return bytes;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		if (null != spill) {
+			for (GroupBacklog g : groups.values()) {
+				release(g);
+			}
+		}
+		groups.clear();
+		processed.clear();
+		fresh.clear();
+		size = 0;
+		bytes = 0;
+		heapMessages = 0;
+		heapBytes = 0;
+	}
+
+	public List<Message> toList() {
+		//Each group is drained in turn so the order is lastGroupID, then the indexes
+		List<Message> l = new ArrayList<Message>(size);
+		GroupBacklog last = groups.get(queue.lastGroupID);
+		if (null != last) {
+			addAll(l, last);
+		}
+		for (GroupBacklog g : processed) {
+			addAll(l, g);
+		}
+		for (GroupBacklog g : fresh) {
+			addAll(l, g);
+		}
+		return l;
+	}
+
+	public long[] copy(List<Message> messages) {
+		int n = 0;
+		for (GroupBacklog g : groups.values()) {
+			n += g.spilled.size();
+		}
+		long[] spilled = new long[n];
+		n = 0;
+		for (GroupBacklog g : groups.values()) {
+			messages.addAll(g.messages);
+			for (int i = 0; i < g.spilled.size(); i++) {
+				spilled[n++] = g.spilled.get(i);
+			}
+		}
+		return spilled;
+	}
+
+	//Spilled messages are read without being released, they stay queued
+	private void addAll(List<Message> l, GroupBacklog g) {
+		l.addAll(g.messages);
+		for (int i = 0; i < g.spilled.size(); i++) {
+			try {
+				l.add(spill.peek(g.spilled.get(i)));
+			} catch (IOException e) {
+				Log.logger.severe("Cannot read a spilled message for groupID["+g.groupID+"] Error["+e.getMessage()+"]");
+			}
+		}
+	}
+
+	private void index(GroupBacklog g) {
+		if (g.messages.isEmpty() || g.groupID == queue.lastGroupID) {
+			return;
+		}
+		g.index = queue.processedGroupID.contains(g.groupID) ? processed : fresh;
+		g.index.add(g);
+	}
+
+	private void unindex(GroupBacklog g) {
+		if (null != g.index) {
+			g.index.remove(g);
+			g.index = null;
+		}
+	}
+
+	//Same tie breaks as MessageComparator once the groups are in the same tier
+	static int compareMessages(Message m1, Message m2) {
+		if (m1.getTime() < m2.getTime()) {
+			return -1;
+		}
+		if (m1.getTime() > m2.getTime()) {
+			return 1;
+		}
+		if (m1.getSequence() != m2.getSequence()) {
+			return m1.getSequence() < m2.getSequence() ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static class GroupBacklog {
+
+		private final long groupID;
+		private final ArrayDeque<Message> messages = new ArrayDeque<Message>();
+		//Footprint of the group's messages in memory and spilled
+		private long bytes = 0;
+		//Spill store positions of the messages after those in memory, oldest first
+		private final LongQueue spilled = new LongQueue();
+		//The last message spilled so a new one can be checked against it, null when nothing is spilled
+		private Message lastSpilled = null;
+		//The index this group is currently held in, null if it is lastGroupID or empty
+		private TreeSet<GroupBacklog> index = null;
+
+		GroupBacklog(long groupID) {
+			this.groupID = groupID;
+		}
+
+		//Messages nearly always arrive in order so this is an append, otherwise walk back from the tail
+		void insert(Message msg) {
+			if (messages.isEmpty() || compareMessages(messages.peekLast(), msg) <= 0) {
+				messages.addLast(msg);
+				return;
+			}
+			ArrayDeque<Message> tail = new ArrayDeque<Message>();
+			while (!messages.isEmpty() && compareMessages(messages.peekLast(), msg) > 0) {
+				tail.addFirst(messages.pollLast());
+			}
+			messages.addLast(msg);
+			messages.addAll(tail);
+		}
+	}
+
+	//FIFO of primitive longs that only allocates once something is added
+	private static class LongQueue {
+
+		private long[] values = null;
+		private int head = 0;
+		private int size = 0;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void add(long v) {
+			if (null == values) {
+				values = new long[8];
+			} else if (size == values.length) {
+				long[] grown = new long[size * 2];
+				for (int i = 0; i < size; i++) {
+					grown[i] = get(i);
+				}
+				values = grown;
+				head = 0;
+			}
+			values[(head + size++) % values.length] = v;
+		}
+
+		long get(int i) {
+			return values[(head + i) % values.length];
+		}
+
+		long poll() {
+			long v = values[head];
+			head = (head + 1) % values.length;
+			if (--size == 0) {
+				head = 0;
+			}
+			return v;
+		}
+	}
+
+	private static class HeadOrder implements Comparator<GroupBacklog> {
+
+		public int compare(GroupBacklog g1, GroupBacklog g2) {
+			int c = compareMessages(g1.messages.peekFirst(), g2.messages.peekFirst());
+			if (c != 0) {
+				return c;
+			}
+			return g1.groupID < g2.groupID ? -1 : (g1.groupID == g2.groupID ? 0 : 1);
+		}
+	}
+}
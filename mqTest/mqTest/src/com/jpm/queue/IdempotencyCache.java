@@ -0,0 +1,102 @@
+package com.jpm.queue;
+
+//Idempotency keys of the messages a queue has accepted, so a producer sending one again is told it is a duplicate
+//before it takes a resource. A key is live while its message is queued or with the gateway and is never forgotten
+//then. Once delivered it is remembered for the window. If the message fails, is dropped or its group cancelled the
+//key is forgotten straight away so the producer can send it again.
+//Delivered keys go into one of GENERATIONS sets, each covering a slice of the window, and the oldest set is dropped
+//whole once the window has moved past it. Nothing is stored per key beyond the key itself and expiry needs no sweep,
+//at the cost of keys being forgotten somewhere between (GENERATIONS - 1) / GENERATIONS of the window and the whole
+//window after delivery. A slice is also closed early once it holds its share of maxKeys, which bounds the memory
+//under a burst by shortening the window.
+//Live keys map to their group so cancelling a group can forget its queued messages.
+class IdempotencyCache {
+
+	private static final int GENERATIONS = 4;
+
+	private final long slice;
+	private final int sliceKeys;
+	private final LongLongMap live = new LongLongMap();
+	private final LongHashSet[] delivered = new LongHashSet[GENERATIONS];
+	//Index of the set taking keys now and when its slice began, MIN_VALUE until the first key
+	private int current = 0;
+	private long sliceStart = Long.MIN_VALUE;
+
+	IdempotencyCache(long window, int maxKeys) {
+		slice = Math.max(1, window / GENERATIONS);
+		sliceKeys = maxKeys > 0 ? Math.max(1, maxKeys / GENERATIONS) : Integer.MAX_VALUE;
+		for (int i = 0; i < GENERATIONS; i++) {
+			delivered[i] = new LongHashSet();
+		}
+	}
+
+	//Whether the key is live or was delivered within the window
+	synchronized boolean contains(long key, long now) {
+		expire(now);
+		if (live.containsKey(key)) {
+			return true;
+		}
+		for (LongHashSet s : delivered) {
+			if (s.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//The message has been queued, its key is live until it is delivered or forgotten
+	synchronized void admit(long key, long groupID) {
+		live.putIfAbsent(key, groupID);
+	}
+
+	synchronized void delivered(long key, long now) {
+		live.remove(key);
+		expire(now);
+		if (delivered[current].size() >= sliceKeys) {
+			advance(now);
+		}
+		delivered[current].add(key);
+	}
+
+	synchronized void forget(long key) {
+		live.remove(key);
+	}
+
+	//The group's queued messages have been removed, any it has with the gateway come back through delivered() or forget()
+	synchronized int forgetGroup(long groupID) {
+		return live.isEmpty() ? 0 : live.removeValue(groupID);
+	}
+
+	//The queued messages have been flushed
+	synchronized void clearLive() {
+		live.clear();
+	}
+
+	synchronized int size() {
+		int n = live.size();
+		for (LongHashSet s : delivered) {
+			n += s.size();
+		}
+		return n;
+	}
+
+	private void expire(long now) {
+		if (sliceStart == Long.MIN_VALUE) {
+			sliceStart = now;
+		}
+		//Drop a generation for each slice that has passed, at most all of them
+		for (int i = 0; i < GENERATIONS && now - sliceStart >= slice; i++) {
+			advance(sliceStart + slice);
+		}
+		if (now - sliceStart >= slice) {
+			sliceStart = now;
+		}
+	}
+
+	//Start a new slice in place of the oldest, a fresh set so the memory of a large one is given back
+	private void advance(long start) {
+		current = (current + 1) % GENERATIONS;
+		delivered[current] = new LongHashSet();
+		sliceStart = start;
+	}
+}
@@ -0,0 +1,154 @@
+package com.jpm.queue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+//Client for the Scheduler's ingest endpoint, set with ingest.port. Requests are buffered and sent in bulk without
+//waiting for each answer; the scheduler acknowledges them in batches. Each request returns its number on this
+//connection, and sync() waits for everything sent and returns the results in that order.
+//No more than window requests are left unacknowledged, a request past that reads acknowledgements before it is sent.
+//This also keeps the acknowledgements owed small enough for the socket buffers, as the server stops reading a
+//connection whose acknowledgements it cannot write.
+//Not thread safe, give each producer thread its own client.
+public class IngestClient {
+
+	private final SocketChannel channel;
+	private final int window;
+	private ByteBuffer out = ByteBuffer.allocate(1 << 16);
+	private ByteBuffer in = ByteBuffer.allocate(1 << 12);
+	//Requests made and requests acknowledged
+	private long sent = 0;
+	private long acknowledged = 0;
+	//Results acknowledged since the last sync()
+	private final List<AddResult> results = new ArrayList<AddResult>();
+
+	public IngestClient(String host, int port) throws IOException {
+		this(host, port, 4096);
+	}
+
+	public IngestClient(String host, int port, int window) throws IOException {
+		this.window = Math.max(1, window);
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	public long submit(long groupID, String data) throws IOException {
+		return submit(groupID, data, false);
+	}
+
+	public long submit(long groupID, String data, boolean lastMessage) throws IOException {
+		return submit(groupID, data, lastMessage, 0);
+	}
+
+	//The message is timestamped here, which is the time the scheduler orders it by. A non zero idempotency key makes
+	//it safe to submit again after a lost connection, a copy the scheduler already has is acknowledged DUPLICATE.
+	public long submit(long groupID, String data, boolean lastMessage, long idempotencyKey) throws IOException {
+		byte[] b = IngestProtocol.encodeData(data);
+		reserve(IngestProtocol.LENGTH + IngestProtocol.submitSize(b, idempotencyKey));
+		IngestProtocol.writeSubmit(out, groupID, System.currentTimeMillis(), lastMessage, b, idempotencyKey);
+		return sent++;
+	}
+
+	//Acknowledged REJECTED_CANCELLED if the group was already cancelled
+	public long cancel(long groupID) throws IOException {
+		reserve(IngestProtocol.LENGTH + 1 + 8);
+		IngestProtocol.writeGroup(out, IngestProtocol.CANCEL, groupID);
+		return sent++;
+	}
+
+	//Closes the group without a last message. Acknowledged REJECTED_COMPLETED if it was already closed.
+	public long terminate(long groupID) throws IOException {
+		reserve(IngestProtocol.LENGTH + 1 + 8);
+		IngestProtocol.writeGroup(out, IngestProtocol.TERMINATE, groupID);
+		return sent++;
+	}
+
+	private void reserve(int size) throws IOException {
+		if (sent - acknowledged >= window) {
+			flush();
+			while (sent - acknowledged >= window / 2 + 1) {
+				readAcknowledgements();
+			}
+		}
+		if (out.remaining() < size) {
+			flush();
+			if (out.capacity() < size) {
+				out = ByteBuffer.allocate(size);
+			}
+		}
+	}
+
+	//Sends everything buffered
+	public void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	//Sends everything buffered, waits for it all to be acknowledged and returns the results acknowledged since the
+	//last call in the order the requests were made
+	public List<AddResult> sync() throws IOException {
+		flush();
+		while (acknowledged < sent) {
+			readAcknowledgements();
+		}
+		List<AddResult> r = new ArrayList<AddResult>(results);
+		results.clear();
+		return r;
+	}
+
+	public long getUnacknowledged() {
+		return sent - acknowledged;
+	}
+
+	//Blocks until at least one ACK frame has been read
+	private void readAcknowledgements() throws IOException {
+		for (;;) {
+			in.flip();
+			boolean read = false;
+			while (in.remaining() >= IngestProtocol.LENGTH) {
+				int length = in.getInt(in.position());
+				if (in.remaining() < IngestProtocol.LENGTH + length) {
+					break;
+				}
+				in.getInt();
+				byte type = in.get();
+				long first = in.getLong();
+				int count = in.getInt();
+				if (type != IngestProtocol.ACK || first != acknowledged || length != IngestProtocol.ACK_HEADER + count) {
+					throw new IOException("Unexpected frame type [" + type + "] for request [" + first + "], expected an acknowledgement for [" + acknowledged + "]");
+				}
+				for (int i = 0; i < count; i++) {
+					results.add(IngestProtocol.result(in.get()));
+				}
+				acknowledged += count;
+				read = true;
+			}
+			in.compact();
+			if (read) {
+				return;
+			}
+			if (!in.hasRemaining()) {
+				ByteBuffer b = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				b.put(in);
+				in = b;
+			}
+			if (channel.read(in) < 0) {
+				throw new EOFException("Connection closed by the scheduler with [" + (sent - acknowledged) + "] requests unacknowledged");
+			}
+		}
+	}
+
+	//Anything not yet acknowledged may or may not have been queued, call sync() first to be sure
+	public void close() throws IOException {
+		channel.close();
+	}
+}
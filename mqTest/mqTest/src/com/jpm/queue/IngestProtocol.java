@@ -0,0 +1,88 @@
+package com.jpm.queue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+//Wire format between IngestClient and IngestServer. Every frame is [int length][byte type][body] with the length
+//counting the type and body. Requests carry no id, the server handles each connection's requests in the order they
+//arrive so the client numbers them itself. Acknowledgements come back in batches as
+//[ACK][long first request][int count][one AddResult ordinal per request].
+//SUBMIT  [long groupID][long time][byte lastMessage][int data length or -1][UTF-8 data]
+//SUBMIT_KEYED  [long idempotency key] then as SUBMIT, answered DUPLICATE if the key is already known
+//CANCEL and TERMINATE  [long groupID], answered ACCEPTED or REJECTED_CANCELLED / REJECTED_COMPLETED if already done
+final class IngestProtocol {
+
+	static final byte SUBMIT = 1;
+	static final byte CANCEL = 2;
+	static final byte TERMINATE = 3;
+	static final byte SUBMIT_KEYED = 4;
+	static final byte ACK = 16;
+
+	static final int LENGTH = 4;
+	//Type, first request and count
+	static final int ACK_HEADER = 1 + 8 + 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final AddResult[] RESULTS = AddResult.values();
+
+	private IngestProtocol() {
+	}
+
+	static byte[] encodeData(String data) {
+		return null == data ? null : data.getBytes(UTF8);
+	}
+
+	static int submitSize(byte[] data, long key) {
+		return 1 + (key == 0 ? 0 : 8) + 8 + 8 + 1 + 4 + (null == data ? 0 : data.length);
+	}
+
+	//A key of 0 is sent as a plain SUBMIT
+	static void writeSubmit(ByteBuffer b, long groupID, long time, boolean lastMessage, byte[] data, long key) {
+		b.putInt(submitSize(data, key));
+		if (key == 0) {
+			b.put(SUBMIT);
+		} else {
+			b.put(SUBMIT_KEYED);
+			b.putLong(key);
+		}
+		b.putLong(groupID);
+		b.putLong(time);
+		b.put((byte) (lastMessage ? 1 : 0));
+		if (null == data) {
+			b.putInt(-1);
+		} else {
+			b.putInt(data.length);
+			b.put(data);
+		}
+	}
+
+	static void writeGroup(ByteBuffer b, byte type, long groupID) {
+		b.putInt(1 + 8);
+		b.put(type);
+		b.putLong(groupID);
+	}
+
+	//Reads the body of a SUBMIT or SUBMIT_KEYED frame, the buffer limit must be the end of the frame
+	static Message readSubmit(ByteBuffer b, boolean keyed) {
+		long key = keyed ? b.getLong() : 0;
+		long groupID = b.getLong();
+		long time = b.getLong();
+		boolean lastMessage = b.get() != 0;
+		int length = b.getInt();
+		String data = null;
+		if (length > b.remaining()) {
+			throw new IllegalArgumentException("Data length [" + length + "] runs past the end of the frame");
+		}
+		if (length >= 0) {
+			data = new String(b.array(), b.arrayOffset() + b.position(), length, UTF8);
+			b.position(b.position() + length);
+		}
+		Message msg = new Message(data, groupID, lastMessage, time);
+		msg.setIdempotencyKey(key);
+		return msg;
+	}
+
+	static AddResult result(byte b) {
+		return RESULTS[b];
+	}
+}
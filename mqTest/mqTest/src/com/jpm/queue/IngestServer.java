@@ -0,0 +1,349 @@
+package com.jpm.queue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+//Non-blocking TCP endpoint so producers in other processes can feed the Scheduler, see IngestProtocol for the frames.
+//One selector thread serves every connection and only moves bytes. Whatever a read brings in is handed to a worker
+//as a batch: each run of submits goes to addAllToQueue in one go, cancels and terminates in between, and the whole
+//batch is acknowledged with a single ACK frame once it is queued, and on disk if the journal syncs every add. So a
+//full queue blocking for queue.offer.timeout.ms, a journal sync or a cancel only holds up the connection it came on.
+//A connection is not read again until its batch has run and its acknowledgements have been written, which keeps its
+//requests in order and holds back a producer that stops reading them rather than buffering without limit.
+class IngestServer implements Runnable {
+
+	private final Scheduler scheduler;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final int maxFrame;
+	private Thread thread = null;
+	private volatile boolean closed = false;
+	//At most one batch per connection is ever running
+	private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int n = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setName("IngestWorker-" + n++);
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	//Connections whose batch has run, to be acknowledged on the selector thread
+	private final Queue<Connection> finished = new ConcurrentLinkedQueue<Connection>();
+
+	IngestServer(Scheduler scheduler, InetSocketAddress address, int maxFrame) throws IOException {
+		this.scheduler = scheduler;
+		this.maxFrame = maxFrame;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try {
+			server.configureBlocking(false);
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+	}
+
+	int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	void start() {
+		thread = new Thread(this);
+		thread.setName("IngestServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Stops accepting and drops every connection, requests not yet acknowledged may or may not have been queued
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			while (!closed) {
+				selector.select();
+				for (Connection c = finished.poll(); null != c; c = finished.poll()) {
+					try {
+						c.acknowledge();
+					} catch (IOException e) {
+						Log.logger.warning("Closing ingest connection from [" + c.remote + "] Error[" + e.getMessage() + "]");
+						c.close();
+					}
+				}
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					SelectionKey key = i.next();
+					i.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection c = (Connection) key.attachment();
+					try {
+						if (key.isWritable()) {
+							c.write();
+						}
+						if (key.isValid() && key.isReadable()) {
+							c.read();
+						}
+					} catch (IOException e) {
+						Log.logger.warning("Closing ingest connection from [" + c.remote + "] Error[" + e.getMessage() + "]");
+						c.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.logger.severe("Ingest server stopped Error[" + e.getMessage() + "]");
+		} finally {
+			workers.shutdown();
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					//Closing anyway
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				//Closing anyway
+			}
+			Log.logger.info("Ingest server closed");
+		}
+	}
+
+	private void accept() {
+		try {
+			SocketChannel channel = server.accept();
+			if (null == channel) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection c = new Connection(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			Log.logger.info("Ingest connection from [" + c.remote + "]");
+		} catch (IOException e) {
+			Log.logger.warning("Cannot accept ingest connection Error[" + e.getMessage() + "]");
+		}
+	}
+
+	private class Connection implements Runnable {
+
+		private final SocketChannel channel;
+		private final Object remote;
+		private SelectionKey key = null;
+		private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+		//Acknowledgements waiting to be written, kept ready for filling
+		private ByteBuffer out = ByteBuffer.allocate(1 << 12);
+		//Number of the next request, as the client counts them
+		private long next = 0;
+		//The frame type of each request in this batch, in order, replaced by its AddResult ordinal as the batch runs
+		private byte[] results = new byte[256];
+		private long[] groups = new long[256];
+		private int count = 0;
+		private final List<Message> submits = new ArrayList<Message>();
+		//Submits already queued while the batch runs
+		private int taken = 0;
+		//Set if the batch could not be run
+		private RuntimeException failed = null;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			remote = channel.socket().getRemoteSocketAddress();
+		}
+
+		void read() throws IOException {
+			if (channel.read(in) < 0) {
+				Log.logger.info("Ingest connection from [" + remote + "] closed");
+				close();
+				return;
+			}
+			in.flip();
+			int needed;
+			try {
+				needed = handle();
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Malformed frame");
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Malformed frame [" + e.getMessage() + "]");
+			}
+			in.compact();
+			if (in.capacity() < needed) {
+				ByteBuffer b = ByteBuffer.allocate(needed);
+				in.flip();
+				b.put(in);
+				in = b;
+			}
+			if (count > 0) {
+				key.interestOps(0);
+				try {
+					workers.execute(this);
+				} catch (RejectedExecutionException e) {
+					throw new IOException("Ingest server closed");
+				}
+			}
+		}
+
+		//Reads every complete frame into the batch and returns the space needed for the one left incomplete
+		private int handle() throws IOException {
+			count = 0;
+			while (in.remaining() >= IngestProtocol.LENGTH) {
+				int length = in.getInt(in.position());
+				if (length < 1 || length > maxFrame) {
+					throw new IOException("Bad frame length [" + length + "]");
+				}
+				if (in.remaining() < IngestProtocol.LENGTH + length) {
+					return IngestProtocol.LENGTH + length;
+				}
+				int end = in.position() + IngestProtocol.LENGTH + length;
+				int limit = in.limit();
+				in.position(in.position() + IngestProtocol.LENGTH);
+				in.limit(end);
+				byte type = in.get();
+				switch (type) {
+				case IngestProtocol.SUBMIT:
+				case IngestProtocol.SUBMIT_KEYED:
+					submits.add(IngestProtocol.readSubmit(in, type == IngestProtocol.SUBMIT_KEYED));
+					request(type, 0);
+					break;
+				case IngestProtocol.CANCEL:
+				case IngestProtocol.TERMINATE:
+					request(type, in.getLong());
+					break;
+				default:
+					throw new IOException("Unknown frame type [" + type + "]");
+				}
+				if (in.position() != end) {
+					throw new IOException("Frame type [" + type + "] has [" + (end - in.position()) + "] bytes left over");
+				}
+				in.limit(limit);
+			}
+			return 0;
+		}
+
+		private void request(byte type, long groupID) {
+			if (count == results.length) {
+				byte[] b = new byte[count * 2];
+				System.arraycopy(results, 0, b, 0, count);
+				results = b;
+				long[] g = new long[count * 2];
+				System.arraycopy(groups, 0, g, 0, count);
+				groups = g;
+			}
+			groups[count] = groupID;
+			results[count++] = type;
+		}
+
+		//Runs the batch on a worker then hands the connection back to the selector thread to acknowledge it
+		public void run() {
+			try {
+				int first = 0;
+				for (int i = 0; i < count; i++) {
+					byte type = results[i];
+					if (type == IngestProtocol.CANCEL) {
+						//Anything submitted ahead of it has to be queued first
+						queueSubmits(first, i);
+						results[i] = result(scheduler.cancelMessageGroup(groups[i]) < 0 ? AddResult.REJECTED_CANCELLED : AddResult.ACCEPTED);
+						first = i + 1;
+					} else if (type == IngestProtocol.TERMINATE) {
+						queueSubmits(first, i);
+						results[i] = result(scheduler.terminateMessageGroup(groups[i]) ? AddResult.ACCEPTED : AddResult.REJECTED_COMPLETED);
+						first = i + 1;
+					}
+				}
+				queueSubmits(first, count);
+			} catch (RuntimeException e) {
+				failed = e;
+			} finally {
+				submits.clear();
+				taken = 0;
+			}
+			finished.add(this);
+			selector.wakeup();
+		}
+
+		private byte result(AddResult result) {
+			return (byte) result.ordinal();
+		}
+
+		//Requests first to last are a run of submits, the next ones in submits
+		private void queueSubmits(int first, int last) {
+			if (first == last) {
+				return;
+			}
+			List<AddResult> r = scheduler.addAllToQueue(submits.subList(taken, taken + last - first));
+			for (int i = 0; i < r.size(); i++) {
+				results[first + i] = result(r.get(i));
+			}
+			taken += last - first;
+		}
+
+		//On the selector thread once the batch has run
+		void acknowledge() throws IOException {
+			if (!key.isValid()) {
+				return;
+			}
+			if (null != failed) {
+				throw new IOException("Batch failed [" + failed + "]");
+			}
+			int size = IngestProtocol.LENGTH + IngestProtocol.ACK_HEADER + count;
+			if (out.remaining() < size) {
+				ByteBuffer b = ByteBuffer.allocate(Math.max(out.position() + size, out.capacity() * 2));
+				out.flip();
+				b.put(out);
+				out = b;
+			}
+			out.putInt(IngestProtocol.ACK_HEADER + count);
+			out.put(IngestProtocol.ACK);
+			out.putLong(next);
+			out.putInt(count);
+			out.put(results, 0, count);
+			next += count;
+			write();
+		}
+
+		//Reading resumes once everything owed has been written
+		void write() throws IOException {
+			out.flip();
+			channel.write(out);
+			out.compact();
+			key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//Closing anyway
+			}
+		}
+	}
+}
@@ -0,0 +1,707 @@
+package com.jpm.queue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+//Append only record of every change to the queue so it can be rebuilt after a crash.
+//Records are written to memory mapped segment files that roll over when full. Each record is
+//[length][crc32][type][fields] and a zero length marks the end of the written part of a segment.
+//Once more has been written since the last checkpoint than the checkpoint itself took, or the checkpoint interval has
+//passed and the journal has rolled since, the checkpoint thread starts a new segment and copies the live state as it
+//stands at that point. The copy only takes references under the queue monitor, it is written to a checkpoint file
+//of the same records outside it, between CHECKPOINT and CHECKPOINT_END, and the segments before are only deleted once
+//that is on disk. Recovery replays the newest checkpoint that reached its CHECKPOINT_END then the segments from its
+//own, so a checkpoint cut short leaves the one before it and its segments in use. The journal does not grow with the
+//traffic.
+public class Journal {
+
+	//How often written records are forced to disk
+	public enum Sync {
+		//Every add and cancel waits for its record to be on disk, concurrent callers share one force
+		ALWAYS,
+		//A background thread forces the journal every interval
+		INTERVAL,
+		//Leave it to the operating system
+		NONE
+	}
+
+	static final byte ADD = 1;
+	static final byte DISPATCH = 2;
+	static final byte COMPLETE = 3;
+	static final byte CANCEL = 4;
+	static final byte TERMINATE = 5;
+	static final byte PROCESSED = 6;
+	static final byte LAST_GROUP = 7;
+	static final byte CLEAR_QUEUE = 8;
+	static final byte CLEAR_CANCELLED = 9;
+	static final byte CLEAR_COMPLETED = 10;
+	static final byte CLEAR_PROCESSED = 11;
+	static final byte CHECKPOINT = 12;
+	static final byte CHECKPOINT_END = 13;
+
+	private static final int MAGIC = 0x4D514A31;
+	private static final int HEADER = 8;
+	private static final int RECORD_HEADER = 8;
+
+	private final File dir;
+	private final Sync sync;
+	private final long interval;
+	private final int segmentSize;
+	private int segment = 0;
+	private RandomAccessFile file = null;
+	private MappedByteBuffer buffer = null;
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	private final CRC32 crc = new CRC32();
+	private boolean closed = false;
+	//Count of records appended and count known to be on disk
+	private long written = 0;
+	private long synced = 0;
+	private final Object syncLock = new Object();
+	private Thread syncThread = null;
+	private MessageQueue queue = null;
+	//Messages dispatched and not yet completed, in dispatch order, so a checkpoint can write them out again
+	private final Map<Long, Message> inFlight = new LinkedHashMap<Long, Message>();
+	//Segment the last checkpoint stands in front of and the bytes it took, and whether the checkpoint thread should
+	//write another
+	private int checkpointStart = 0;
+	private long checkpointBytes = 0;
+	private boolean checkpointing = false;
+	private boolean checkpointDue = false;
+	private long checkpointInterval = 0;
+	private long lastCheckpoint = 0;
+	private Thread checkpointThread = null;
+
+	public Journal(File dir, Sync sync, long interval, int segmentSize) {
+		this.dir = dir;
+		this.sync = sync;
+		this.interval = interval;
+		this.segmentSize = segmentSize;
+	}
+
+	public Sync getSync() {
+		return sync;
+	}
+
+	//Most ms between checkpoints while anything is being written, 0 leaves it to the size of the journal
+	public synchronized void setCheckpointInterval(long interval) {
+		checkpointInterval = interval;
+	}
+
+	//Replays any segments left from the last run into the queue, then writes the queue state to a new segment
+	//and removes the old ones. The queue must not be in use yet. Returns the sequence of every message the
+	//journal already knew about.
+	LongHashSet recover(MessageQueue queue) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory [" + dir + "]");
+		}
+		File[] old = segments();
+		LongHashSet known = new LongHashSet();
+		replay(queue, known);
+		if (old.length > 0) {
+			segment = segmentNumber(old[old.length - 1]);
+		}
+		this.queue = queue;
+		checkpoint();
+		checkpointThread = new Thread(new Runnable() {
+			public void run() {
+				checkpoints();
+			}
+		});
+		checkpointThread.setName("JournalCheckpoint");
+		checkpointThread.setDaemon(true);
+		checkpointThread.start();
+		if (sync == Sync.INTERVAL) {
+			syncThread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (;;) {
+							Thread.sleep(interval);
+							force();
+						}
+					} catch (InterruptedException e) {
+						//Journal closed
+					}
+				}
+			});
+			syncThread.setName("JournalSync");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		}
+		return known;
+	}
+
+	//Write everything needed to rebuild the queue as it is at the start of a new segment then delete the segments before
+	//it. Only references are copied holding the queue monitor, spilled messages stay pinned in the store until written.
+	private void checkpoint() throws IOException {
+		int start;
+		List<Message> dispatched;
+		long[] processed;
+		long lastGroupID;
+		long[] cancelled;
+		long[] completed;
+		List<Message> queued = new ArrayList<Message>();
+		long[] spilled;
+		SpillStore.Reader reader = null;
+		synchronized (queue) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				roll(0);
+				start = segment;
+				checkpointing = true;
+				dispatched = new ArrayList<Message>(inFlight.values());
+				processed = queue.processedGroupID.toArray();
+				lastGroupID = queue.lastGroupID;
+				cancelled = queue.cancelledGroups.toArray();
+				completed = queue.completedGroups.toArray();
+				spilled = queue.getEngine().copy(queued);
+				if (spilled.length > 0) {
+					reader = queue.getSpill().pin();
+				}
+			}
+		}
+		File f = new File(dir, String.format("checkpoint-%08d.cpt", start));
+		long bytes;
+		try {
+			CheckpointWriter w = new CheckpointWriter(f);
+			try {
+				w.append(CHECKPOINT);
+				LongHashSet flying = new LongHashSet();
+				//Dispatching puts the group in the history so the history is written after
+				for (Message msg : dispatched) {
+					w.add(msg);
+					w.dispatch(msg);
+					flying.add(msg.getSequence());
+				}
+				w.append(CLEAR_PROCESSED);
+				//Oldest first so replaying keeps the history in the same order
+				for (long groupID : processed) {
+					w.append(PROCESSED, groupID);
+				}
+				w.append(LAST_GROUP, lastGroupID);
+				for (long groupID : cancelled) {
+					w.append(CANCEL, groupID);
+				}
+				for (long groupID : completed) {
+					w.append(TERMINATE, groupID);
+				}
+				//Replaying puts them back in order. A retry is queued again but still journaled as dispatched.
+				for (Message msg : queued) {
+					if (!flying.contains(msg.getSequence())) {
+						w.add(msg);
+					}
+				}
+				for (long position : spilled) {
+					w.add(reader.read(position));
+				}
+				w.append(CHECKPOINT_END);
+				w.force();
+			} finally {
+				bytes = w.close();
+			}
+		} catch (IOException e) {
+			if (f.exists() && !f.delete()) {
+				Log.logger.severe("Error deleting journal checkpoint [" + f + "]");
+			}
+			throw e;
+		} finally {
+			if (null != reader) {
+				synchronized (queue) {
+					queue.getSpill().unpin();
+				}
+			}
+			synchronized (this) {
+				checkpointing = false;
+			}
+		}
+		synchronized (this) {
+			checkpointStart = start;
+			checkpointBytes = bytes;
+			checkpointDue = false;
+			lastCheckpoint = System.currentTimeMillis();
+		}
+		for (File old : segments()) {
+			if (segmentNumber(old) < start && !old.delete()) {
+				Log.logger.severe("Error deleting journal segment [" + old + "]");
+			}
+		}
+		for (File old : checkpointFiles()) {
+			if (segmentNumber(old) < start && !old.delete()) {
+				Log.logger.severe("Error deleting journal checkpoint [" + old + "]");
+			}
+		}
+	}
+
+	//Writes a checkpoint whenever the journal has grown enough since the last one or the interval is up
+	private void checkpoints() {
+		try {
+			for (;;) {
+				synchronized (this) {
+					while (!checkpointDue) {
+						long now = System.currentTimeMillis();
+						if (checkpointInterval <= 0) {
+							wait();
+						} else if (now < lastCheckpoint + checkpointInterval) {
+							wait(lastCheckpoint + checkpointInterval - now);
+						} else if (segment > checkpointStart) {
+							checkpointDue = true;
+						} else {
+							//Nothing has rolled so there is nothing to delete
+							lastCheckpoint = now;
+						}
+					}
+				}
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					Log.logger.severe("Error writing a journal checkpoint [" + e.getMessage() + "]");
+				}
+			}
+		} catch (InterruptedException e) {
+			//Journal closed
+		}
+	}
+
+	//The newest checkpoint that was finished then every segment from the one it was taken at, or every segment if
+	//there is no such checkpoint
+	private void replay(MessageQueue queue, LongHashSet known) throws IOException {
+		List<File> files = new ArrayList<File>();
+		int start = 0;
+		File[] checkpoints = checkpointFiles();
+		for (int i = checkpoints.length - 1; i >= 0; i--) {
+			if (finished(checkpoints[i])) {
+				files.add(checkpoints[i]);
+				start = segmentNumber(checkpoints[i]);
+				break;
+			}
+			Log.logger.warning("Ignoring journal checkpoint [" + checkpoints[i] + "] that was not finished");
+		}
+		for (File f : segments()) {
+			if (segmentNumber(f) >= start) {
+				files.add(f);
+			}
+		}
+		Map<Long, Message> queued = new LinkedHashMap<Long, Message>();
+		Map<Long, Message> inFlight = new LinkedHashMap<Long, Message>();
+		long maxSequence = 0;
+		int records = 0;
+		replay:
+		for (File f : files) {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				ByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (b.remaining() < HEADER || b.getInt() != MAGIC) {
+					Log.logger.severe("Skipping journal segment [" + f + "] with a bad header");
+					continue;
+				}
+				b.getInt();
+				for (int length = next(b, f); length != 0; length = next(b, f)) {
+					if (length < 0) {
+						//A torn write at the end of the journal, nothing after it was acknowledged
+						break replay;
+					}
+					records++;
+					byte type = b.get();
+					switch (type) {
+					case CHECKPOINT:
+					case CHECKPOINT_END:
+						//Only a finished checkpoint is replayed, and it is replayed first
+						break;
+					case ADD:
+						Message msg = MessageCodec.read(b);
+						queued.put(msg.getSequence(), msg);
+						known.add(msg.getSequence());
+						maxSequence = Math.max(maxSequence, msg.getSequence());
+						if (msg.lastMessage) {
+							queue.completedGroups.add(msg.getGroupID());
+						}
+						break;
+					case DISPATCH:
+						long sequence = b.getLong();
+						long groupID = b.getLong();
+						msg = queued.remove(sequence);
+						if (null != msg) {
+							inFlight.put(sequence, msg);
+						}
+						queue.processedGroupID.add(groupID);
+						queue.lastGroupID = groupID;
+						break;
+					case COMPLETE:
+						sequence = b.getLong();
+						if (null == inFlight.remove(sequence)) {
+							queued.remove(sequence);
+						}
+						break;
+					case CANCEL:
+						groupID = b.getLong();
+						queue.cancelledGroups.add(groupID);
+						removeGroup(queued, groupID);
+						removeGroup(inFlight, groupID);
+						break;
+					case TERMINATE:
+						queue.completedGroups.add(b.getLong());
+						break;
+					case PROCESSED:
+						queue.processedGroupID.add(b.getLong());
+						break;
+					case LAST_GROUP:
+						queue.lastGroupID = b.getLong();
+						break;
+					case CLEAR_QUEUE:
+						queued.clear();
+						break;
+					case CLEAR_CANCELLED:
+						queue.cancelledGroups.clear();
+						break;
+					case CLEAR_COMPLETED:
+						queue.completedGroups.clear();
+						break;
+					case CLEAR_PROCESSED:
+						queue.processedGroupID.clear();
+						queue.lastGroupID = -1;
+						break;
+					default:
+						throw new IOException("Unknown journal record type [" + type + "] in [" + f + "]");
+					}
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		//Messages that were with the gateway when we stopped are sent again
+		for (Message msg : inFlight.values()) {
+			queue.restore(msg, false);
+		}
+		for (Message msg : queued.values()) {
+			queue.restore(msg, false);
+		}
+		queue.advanceSequence(maxSequence);
+		Log.logger.info("Replayed [" + records + "] journal records, [" + (inFlight.size() + queued.size()) + "] messages recovered");
+	}
+
+	//Positions the buffer at the body of the next record and returns its length, 0 at the end of what was written or
+	//-1 if the record is torn
+	private int next(ByteBuffer b, File f) {
+		if (b.remaining() < RECORD_HEADER) {
+			return 0;
+		}
+		int length = b.getInt();
+		int checksum = b.getInt();
+		if (length == 0) {
+			return 0;
+		}
+		if (length < 0 || length > b.remaining()) {
+			Log.logger.severe("Journal record has a bad length in [" + f + "] at [" + b.position() + "]");
+			return -1;
+		}
+		crc.reset();
+		for (int i = b.position(); i < b.position() + length; i++) {
+			crc.update(b.get(i));
+		}
+		if ((int) crc.getValue() != checksum) {
+			Log.logger.severe("Journal record failed its checksum in [" + f + "] at [" + b.position() + "]");
+			return -1;
+		}
+		return length;
+	}
+
+	//Whether the checkpoint was written out as far as its CHECKPOINT_END
+	private boolean finished(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			ByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (b.remaining() < HEADER || b.getInt() != MAGIC) {
+				return false;
+			}
+			b.getInt();
+			for (int length = next(b, f); length > 0; length = next(b, f)) {
+				if (b.get(b.position()) == CHECKPOINT_END) {
+					return true;
+				}
+				b.position(b.position() + length);
+			}
+			return false;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void removeGroup(Map<Long, Message> messages, long groupID) {
+		Iterator<Message> i = messages.values().iterator();
+		while (i.hasNext()) {
+			if (i.next().getGroupID() == groupID) {
+				i.remove();
+			}
+		}
+	}
+
+	//Returns the position of the record which can be passed to commit()
+	public synchronized long add(Message msg) throws IOException {
+		return writeAdd(msg);
+	}
+
+	public synchronized long dispatch(Message msg) throws IOException {
+		inFlight.put(msg.getSequence(), msg);
+		return writeDispatch(msg);
+	}
+
+	public synchronized long complete(Message msg) throws IOException {
+		inFlight.remove(msg.getSequence());
+		return append(COMPLETE, msg.getSequence());
+	}
+
+	private long writeAdd(Message msg) throws IOException {
+		byte[] data = MessageCodec.encodeData(msg);
+		ByteBuffer b = record(ADD, MessageCodec.size(msg, data));
+		MessageCodec.write(b, msg, data);
+		return write();
+	}
+
+	private long writeDispatch(Message msg) throws IOException {
+		ByteBuffer b = record(DISPATCH, 16);
+		b.putLong(msg.getSequence());
+		b.putLong(msg.getGroupID());
+		return write();
+	}
+
+	public synchronized long append(byte type, long value) throws IOException {
+		record(type, 8).putLong(value);
+		return write();
+	}
+
+	public synchronized long append(byte type) throws IOException {
+		record(type, 0);
+		return write();
+	}
+
+	private ByteBuffer record(byte type, int size) {
+		if (scratch.capacity() < size + 1) {
+			scratch = ByteBuffer.allocate(Math.max(size + 1, scratch.capacity() * 2));
+		}
+		scratch.clear();
+		scratch.put(type);
+		return scratch;
+	}
+
+	private long write() throws IOException {
+		if (closed) {
+			return written;
+		}
+		scratch.flip();
+		int length = scratch.remaining();
+		crc.reset();
+		crc.update(scratch.array(), 0, length);
+		if (buffer.remaining() < RECORD_HEADER + length) {
+			roll(RECORD_HEADER + length);
+			//Checkpoint once the journal since the last one is longer than it, which at most doubles what is written
+			if (!checkpointing && null != checkpointThread && (long) (segment - checkpointStart) * segmentSize > checkpointBytes) {
+				checkpointDue = true;
+				notifyAll();
+			}
+		}
+		buffer.putInt(length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(scratch);
+		return ++written;
+	}
+
+	//Start the next segment, making sure the one being closed is on disk first
+	private void roll(int needed) throws IOException {
+		if (null != buffer) {
+			if (sync != Sync.NONE) {
+				buffer.force();
+			}
+			file.close();
+		}
+		segment++;
+		File f = new File(dir, String.format("journal-%08d.seg", segment));
+		file = new RandomAccessFile(f, "rw");
+		int size = Math.max(segmentSize, HEADER + needed + RECORD_HEADER);
+		file.setLength(size);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(1);
+		Log.logger.info("Started journal segment [" + f.getName() + "]");
+	}
+
+	//With Sync.ALWAYS wait until the record at this position is on disk. Whoever gets in first forces
+	//everything written so far so callers arriving together share a single force.
+	public void commit(long position) {
+		if (sync == Sync.ALWAYS) {
+			synchronized (syncLock) {
+				if (synced < position) {
+					force();
+				}
+			}
+		}
+	}
+
+	private void force() {
+		synchronized (syncLock) {
+			long target;
+			MappedByteBuffer b;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				target = written;
+				b = buffer;
+			}
+			if (target > synced) {
+				b.force();
+				synced = target;
+			}
+		}
+	}
+
+	public void close() {
+		force();
+		synchronized (this) {
+			if (null != syncThread) {
+				syncThread.interrupt();
+			}
+			if (null != checkpointThread) {
+				checkpointThread.interrupt();
+			}
+			closed = true;
+			try {
+				if (null != file) {
+					file.close();
+				}
+			} catch (IOException e) {
+				Log.logger.severe("Error closing journal [" + e.getMessage() + "]");
+			}
+		}
+	}
+
+	//Throw the journal away once the queue has been backed up in full
+	public void delete() {
+		close();
+		for (File f : segments()) {
+			if (!f.delete()) {
+				Log.logger.severe("Error deleting journal segment [" + f + "]");
+			}
+		}
+		for (File f : checkpointFiles()) {
+			if (!f.delete()) {
+				Log.logger.severe("Error deleting journal checkpoint [" + f + "]");
+			}
+		}
+	}
+
+	private File[] segments() {
+		return files("journal-", ".seg");
+	}
+
+	private File[] checkpointFiles() {
+		return files("checkpoint-", ".cpt");
+	}
+
+	private File[] files(final String prefix, final String suffix) {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().startsWith(prefix) && f.getName().endsWith(suffix);
+			}
+		});
+		if (null == files) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	//The number of a segment, or of the segment a checkpoint was taken at
+	private static int segmentNumber(File f) {
+		String n = f.getName();
+		return Integer.parseInt(n.substring(n.indexOf('-') + 1, n.lastIndexOf('.')));
+	}
+
+	//Writes a checkpoint file in the record format of the segments, on the checkpoint thread without the journal
+	//monitor. Plain streams rather than a channel, which closing the journal would break by interrupting the thread.
+	private static class CheckpointWriter {
+
+		private final FileOutputStream file;
+		private final DataOutputStream out;
+		private ByteBuffer scratch = ByteBuffer.allocate(256);
+		private final CRC32 crc = new CRC32();
+		private long bytes = HEADER;
+
+		CheckpointWriter(File f) throws IOException {
+			file = new FileOutputStream(f);
+			out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(1);
+		}
+
+		void add(Message msg) throws IOException {
+			byte[] data = MessageCodec.encodeData(msg);
+			MessageCodec.write(record(ADD, MessageCodec.size(msg, data)), msg, data);
+			write();
+		}
+
+		void dispatch(Message msg) throws IOException {
+			ByteBuffer b = record(DISPATCH, 16);
+			b.putLong(msg.getSequence());
+			b.putLong(msg.getGroupID());
+			write();
+		}
+
+		void append(byte type, long value) throws IOException {
+			record(type, 8).putLong(value);
+			write();
+		}
+
+		void append(byte type) throws IOException {
+			record(type, 0);
+			write();
+		}
+
+		private ByteBuffer record(byte type, int size) {
+			if (scratch.capacity() < size + 1) {
+				scratch = ByteBuffer.allocate(Math.max(size + 1, scratch.capacity() * 2));
+			}
+			scratch.clear();
+			scratch.put(type);
+			return scratch;
+		}
+
+		private void write() throws IOException {
+			scratch.flip();
+			int length = scratch.remaining();
+			crc.reset();
+			crc.update(scratch.array(), 0, length);
+			out.writeInt(length);
+			out.writeInt((int) crc.getValue());
+			out.write(scratch.array(), 0, length);
+			bytes += RECORD_HEADER + length;
+		}
+
+		//The segments before it are deleted on the strength of this so it is forced whatever the sync setting
+		void force() throws IOException {
+			out.flush();
+			file.getFD().sync();
+		}
+
+		//Returns the size of the file
+		long close() throws IOException {
+			out.close();
+			return bytes;
+		}
+	}
+}
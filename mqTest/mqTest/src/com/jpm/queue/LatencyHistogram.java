@@ -0,0 +1,90 @@
+package com.jpm.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Lock free histogram of non negative values. Each power of two is split into SUB_BUCKETS buckets so a percentile
+//is reported to within 1/SUB_BUCKETS of its true value. Recording is a couple of atomic adds.
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		total.increment();
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			//retry
+		}
+	}
+
+	//Values below SUB_BUCKETS get a bucket each, above that the top SUB_BITS+1 bits pick the bucket
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	//Largest value that falls in the bucket
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return base + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public double getMean() {
+		long n = total.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	//p is between 0 and 100
+	public long getPercentile(double p) {
+		long n = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			n += counts.get(i);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * p / 100.0);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		total.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
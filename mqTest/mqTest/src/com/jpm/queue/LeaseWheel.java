@@ -0,0 +1,108 @@
+package com.jpm.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Hashed timing wheel of the leases held by dispatched messages. Time is cut into ticks and each tick maps to one of a
+//fixed ring of slots, a lease further out than one turn of the ring waits in its slot until its tick comes round.
+//Slots are lists linked through the messages themselves so adding and removing a lease is constant time with nothing
+//allocated, however many are in flight, and each tick only looks at the one slot that is due.
+class LeaseWheel {
+
+	private final long timeout;
+	private final long tick;
+	private final Message[] slots;
+	private final int mask;
+	//Last tick that has been expired
+	private long current;
+	private int size = 0;
+
+	//Slots is rounded up to a power of two
+	LeaseWheel(long timeout, long tick, int slots, long now) {
+		this.timeout = timeout;
+		this.tick = Math.max(1, tick);
+		int n = 1;
+		while (n < slots) {
+			n <<= 1;
+		}
+		this.slots = new Message[n];
+		mask = n - 1;
+		current = now / this.tick;
+	}
+
+	long getTimeout() {
+		return timeout;
+	}
+
+	long getTick() {
+		return tick;
+	}
+
+	//Rounded up to the next tick so a lease never expires early
+	synchronized void add(Message msg, long now) {
+		long deadline = Math.max(current + 1, (now + timeout + tick - 1) / tick);
+		msg.leaseDeadline = deadline;
+		msg.leaseAttempt = msg.attempts;
+		int slot = (int) (deadline & mask);
+		msg.leaseSlot = slot;
+		msg.leasePrevious = null;
+		msg.leaseNext = slots[slot];
+		if (null != slots[slot]) {
+			slots[slot].leasePrevious = msg;
+		}
+		slots[slot] = msg;
+		size++;
+	}
+
+	//Does nothing if the lease has already expired
+	synchronized void remove(Message msg) {
+		if (msg.leaseSlot >= 0) {
+			unlink(msg);
+		}
+	}
+
+	//Removes and returns the leases that have run out by now
+	synchronized List<Message> expire(long now) {
+		List<Message> expired = null;
+		long target = now / tick;
+		//No need to step through every tick of a long pause, one turn of the ring visits every slot
+		if (target - current > slots.length) {
+			current = target - slots.length;
+		}
+		while (current < target) {
+			current++;
+			Message msg = slots[(int) (current & mask)];
+			while (null != msg) {
+				Message next = msg.leaseNext;
+				if (msg.leaseDeadline <= current) {
+					unlink(msg);
+					if (null == expired) {
+						expired = new ArrayList<Message>();
+					}
+					expired.add(msg);
+				}
+				msg = next;
+			}
+		}
+		return expired;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private void unlink(Message msg) {
+		if (null == msg.leasePrevious) {
+			slots[msg.leaseSlot] = msg.leaseNext;
+		} else {
+			msg.leasePrevious.leaseNext = msg.leaseNext;
+		}
+		if (null != msg.leaseNext) {
+			msg.leaseNext.leasePrevious = msg.leasePrevious;
+		}
+		msg.leasePrevious = null;
+		msg.leaseNext = null;
+		msg.leaseSlot = -1;
+		size--;
+	}
+}
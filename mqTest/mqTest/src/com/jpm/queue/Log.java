@@ -1,29 +1,53 @@
-package com.jpm.queue;
-
-import java.io.IOException;
-import java.util.logging.FileHandler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
-
-public class Log {
-	
-	public final static Logger logger = Logger.getLogger("Scheduler");
-	
-	private static FileHandler fh = null;
-	
-	public static void setupLogging() {
-		//So different classes can call this and it will be harmless
-		if (null ==fh) {
-			try {
-				fh = new FileHandler("scheduler.log");
-				fh.setFormatter(new SimpleFormatter());
-				logger.addHandler(fh);
-				logger.setLevel(Level.INFO);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-	
-}
\ No newline at end of file
+package com.jpm.queue;
+
+import java.io.IOException;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+public class Log {
+	
+	public final static Logger logger = Logger.getLogger("Scheduler");
+	
+	private static FileHandler fh = null;
+	private static AsyncHandler async = null;
+	
+	public static void setupLogging() {
+		//So different classes can call this and it will be harmless
+		if (null ==fh) {
+			try {
+				fh = new FileHandler("scheduler.log");
+				fh.setFormatter(new SimpleFormatter());
+				logger.addHandler(fh);
+				logger.setLevel(Level.INFO);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//Hand records to a background writer through a buffer of bufferSize records so logging never waits on
+	//the file or console. The console handlers of the parent logger are written by the same thread.
+	public static synchronized void setAsync(int bufferSize) {
+		if (null == async) {
+			async = new AsyncHandler(bufferSize);
+			for (Handler h : logger.getHandlers()) {
+				logger.removeHandler(h);
+				async.addTarget(h);
+			}
+			for (Handler h : logger.getParent().getHandlers()) {
+				async.addTarget(h);
+			}
+			logger.setUseParentHandlers(false);
+			logger.addHandler(async);
+		}
+	}
+	
+	//Number of records thrown away because the async buffer was full
+	public static long getDroppedRecords() {
+		return null == async ? 0 : async.getDropped();
+	}
+	
+}
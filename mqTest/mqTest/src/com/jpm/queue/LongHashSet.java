@@ -0,0 +1,150 @@
+package com.jpm.queue;
+
+import java.util.Arrays;
+
+//Set of primitive longs using open addressing with linear probing, so lookups never box and there is no
+//entry object per member. Zero marks an empty slot, the value zero itself is tracked with a flag.
+//Not thread safe.
+public class LongHashSet {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int mask;
+	private int size = 0;
+	private boolean hasZero = false;
+
+	public LongHashSet() {
+		this(16);
+	}
+
+	public LongHashSet(int expected) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expected) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	//Spread the bits so sequential ids do not cluster, from the MurmurHash3 finaliser
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	public boolean contains(long key) {
+		if (key == 0) {
+			return hasZero;
+		}
+		for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Returns true if the key was not already in the set
+	public boolean add(long key) {
+		if (key == 0) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int i = hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return false;
+			}
+		}
+		keys[i] = key;
+		if (++size > keys.length * LOAD_FACTOR) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean remove(long key) {
+		if (key == 0) {
+			if (!hasZero) {
+				return false;
+			}
+			hasZero = false;
+			size--;
+			return true;
+		}
+		for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				keys[i] = 0;
+				size--;
+				closeGap(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Move back any later keys in the probe run that can no longer be reached past the emptied slot
+	private void closeGap(int gap) {
+		for (int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			int home = hash(keys[i]) & mask;
+			//Only move the key if its home slot is not between the gap and where it sits now
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				keys[i] = 0;
+				gap = i;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] old = keys;
+		keys = new long[capacity];
+		mask = capacity - 1;
+		for (long key : old) {
+			if (key != 0) {
+				int i = hash(key) & mask;
+				while (keys[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, 0);
+		hasZero = false;
+		size = 0;
+	}
+
+	public long[] toArray() {
+		long[] a = new long[size];
+		int n = 0;
+		if (hasZero) {
+			a[n++] = 0;
+		}
+		for (long key : keys) {
+			if (key != 0) {
+				a[n++] = key;
+			}
+		}
+		return a;
+	}
+}
@@ -0,0 +1,157 @@
+package com.jpm.queue;
+
+import java.util.Arrays;
+
+//Map of primitive long keys to long values with the same open addressing as LongHashSet. Zero marks an empty slot so
+//it cannot be used as a key.
+//Not thread safe.
+public class LongLongMap {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int size = 0;
+
+	public LongLongMap() {
+		this(16);
+	}
+
+	public LongLongMap(int expected) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expected) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	public boolean containsKey(long key) {
+		for (int i = LongHashSet.hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public long get(long key, long missing) {
+		for (int i = LongHashSet.hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return missing;
+	}
+
+	//Adds the key or replaces its value
+	public void put(long key, long value) {
+		if (key == 0) {
+			throw new IllegalArgumentException("Zero cannot be a key");
+		}
+		int i = LongHashSet.hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * LOAD_FACTOR) {
+			rehash(keys.length << 1);
+		}
+	}
+
+	//Returns false, leaving the value as it was, if the key is already in the map
+	public boolean putIfAbsent(long key, long value) {
+		if (key == 0) {
+			throw new IllegalArgumentException("Zero cannot be a key");
+		}
+		int i = LongHashSet.hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return false;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * LOAD_FACTOR) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean remove(long key) {
+		for (int i = LongHashSet.hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				removeAt(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Removes every key mapped to the value and returns how many there were. Walks the whole table.
+	public int removeValue(long value) {
+		int removed = 0;
+		for (int i = 0; i < keys.length;) {
+			if (keys[i] != 0 && values[i] == value) {
+				//A later key may be moved back into this slot so look at it again
+				removeAt(i);
+				removed++;
+			} else {
+				i++;
+			}
+		}
+		return removed;
+	}
+
+	private void removeAt(int gap) {
+		keys[gap] = 0;
+		size--;
+		//Same backward shift as LongHashSet so lookups never need tombstones
+		for (int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			int home = LongHashSet.hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				keys[i] = 0;
+				gap = i;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != 0) {
+				int i = LongHashSet.hash(oldKeys[j]) & mask;
+				while (keys[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, 0);
+		size = 0;
+	}
+}
@@ -1,79 +1,247 @@
-package com.jpm.queue;
-
-import java.io.Serializable;
-
-public class Message implements Comparable<Message>, Serializable {
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 4234476049750103353L;
-	//Assume for now the message takes a string of data as input
-	private String data;
-	//Assume the groupID is a long integer
-	private long groupID;
-	//Capture the added time so that it can be used by the sorting algorithm
-	private long time;
-	public boolean lastMessage = false;
-
-	//Creation of a new message object requires the message data and groupID
-	public Message(String data, long groupID) {
-		this.data=data;
-		this.groupID=groupID;
-		time = System.currentTimeMillis();
-	}
-	
-	public Message(String data, long groupID, boolean lastMessage) {
-		this.data=data;
-		this.groupID=groupID;
-		time = System.currentTimeMillis();
-		this.lastMessage=lastMessage;
-	}
-	
-	public long getGroupID() {
-		return groupID;
-	}
-
-	public void setGroupID(long groupID) {
-		this.groupID = groupID;
-	}
-
-	public String getData() {
-		return data;
-	}
-
-	public void setData(String data) {
-		this.data = data;
-	}
-
-	public void completed() {
-		Log.logger.info("Message completed in ["+(System.currentTimeMillis()-time)/1000+"] seconds");
-		//Need to trigger the queue to recognise this is now complete and free up for another message to be queued
-		Scheduler s = Scheduler.getInstance();
-		s.incUsedResources();
-		Log.logger.info("Notfiying queue thread");
-		synchronized (s) {
-			s.notify();
-		}
-	}
-
-	public long getTime() {
-		return time;
-	}
-
-	@Override
-	public int compareTo(Message arg0) {
-		Log.logger.info("Should not be calling this!");
-		return ("Data:"+data+"group:"+groupID+"t:"+time).compareTo(("Data:"+arg0.data+"group:"+arg0.groupID+"t:"+arg0.time));
-	}
-	
-	public boolean equals(Message m) {
-		return (m.hashCode()) == hashCode();
-	}
-
-	@Override
-	public int hashCode() {
-		// TODO Auto-generated method stub
-		return ("Data:"+data+"group:"+groupID+"t:"+time).hashCode();
-	}
-	
+package com.jpm.queue;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Level;
+
+public class Message implements Comparable<Message>, Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4234476049750103353L;
+	//Assume for now the message takes a string of data as input
+	private String data;
+	//Assume the groupID is a long integer
+	private long groupID;
+	//Capture the added time so that it can be used by the sorting algorithm
+	private long time;
+	public boolean lastMessage = false;
+	//Optional key naming the logical message so the producer can safely send it again, 0 for none. See dedup.window.ms.
+	private long idempotencyKey = 0;
+	//Assigned by the queue when the message is accepted, 0 until then. Unique within a queue and increasing in the
+	//order messages were accepted so it breaks ties between messages added in the same millisecond.
+	private long sequence = 0;
+	//System.nanoTime() when the queue accepted the message, 0 if it was restored after a restart
+	private transient long enqueueNanos = 0;
+	//When the message was handed to the gateway
+	private transient long dispatchTime = 0;
+	//Set when the message was sent as part of a batch sharing one resource
+	transient DispatchBatch batch = null;
+	//The resources the message was dispatched with, which may belong to another shard
+	transient ResourceManager resource = null;
+	//Slot of that resource, -1 until one is assigned
+	transient int slot = -1;
+	//Times the message has been handed to the gateway
+	transient int attempts = 0;
+	//Last dispatch to be completed. Only the first completion of the dispatch after it counts, so a second call or a
+	//late one for an earlier dispatch is ignored even once the message has been sent again.
+	private transient volatile int completing = 0;
+	private static final AtomicIntegerFieldUpdater<Message> COMPLETING = AtomicIntegerFieldUpdater.newUpdater(Message.class, "completing");
+	transient Outcome outcome = null;
+	//Link to the next message in the completion channel
+	transient Message nextCompleted = null;
+	//Lease on the resource while the gateway has the message, linked into a slot of the shard's LeaseWheel
+	transient long leaseDeadline = 0;
+	transient int leaseSlot = -1;
+	transient Message leasePrevious = null;
+	transient Message leaseNext = null;
+	//Set when the lease ran out before the gateway completed the message
+	transient boolean leaseExpired = false;
+	//Dispatch the lease is for
+	transient int leaseAttempt = 0;
+
+	//Creation of a new message object requires the message data and groupID
+	public Message(String data, long groupID) {
+		this.data=data;
+		this.groupID=groupID;
+		time = System.currentTimeMillis();
+	}
+	
+	public Message(String data, long groupID, boolean lastMessage) {
+		this.data=data;
+		this.groupID=groupID;
+		time = System.currentTimeMillis();
+		this.lastMessage=lastMessage;
+	}
+	
+	//Used when rebuilding a message that was queued before a restart, and by the simulator which runs on its own clock
+	public Message(String data, long groupID, boolean lastMessage, long time) {
+		this.data=data;
+		this.groupID=groupID;
+		this.time=time;
+		this.lastMessage=lastMessage;
+	}
+	
+	public long getGroupID() {
+		return groupID;
+	}
+
+	public void setGroupID(long groupID) {
+		this.groupID = groupID;
+	}
+
+	public String getData() {
+		return data;
+	}
+
+	public void setData(String data) {
+		this.data = data;
+	}
+
+	public void completed() {
+		completed(Outcome.SUCCESS);
+	}
+
+	//Returns straight away, the outcome is recorded and the resource freed on the scheduler's completion thread.
+	//Counts for the latest dispatch, see completed(int, Outcome).
+	public void completed(Outcome outcome) {
+		completed(attempts, outcome);
+	}
+
+	//Completes the dispatch getAttempt() returned when the message was sent. Ignored if that dispatch has already been
+	//completed, say by an expired lease, so a late call cannot count for the message being sent again.
+	public void completed(int attempt, Outcome outcome) {
+		if (Log.logger.isLoggable(Level.FINE)) {
+			Log.logger.fine("Message completed ["+outcome+"] in ["+(System.currentTimeMillis()-time)/1000+"] seconds");
+		}
+		//Need to trigger the queue to recognise this is now complete and free up for another message to be queued
+		Scheduler.getInstance().completed(this, attempt, outcome);
+	}
+
+	//Which dispatch this is, counting from 1, for completed(int, Outcome)
+	public int getAttempt() {
+		return attempts;
+	}
+
+	//Called as the message is dispatched
+	void dispatched() {
+		attempts++;
+		batch = null;
+		slot = -1;
+		outcome = null;
+		leaseExpired = false;
+	}
+
+	//Called if the message goes back to the queue before the gateway had it, the dispatch never happened
+	void undispatched() {
+		attempts--;
+		resource = null;
+		slot = -1;
+	}
+
+	//Only the first completion of a dispatch counts, and only while it is the latest
+	boolean complete(int attempt, Outcome outcome) {
+		if (!COMPLETING.compareAndSet(this, attempt - 1, attempt)) {
+			return false;
+		}
+		this.outcome = outcome;
+		return true;
+	}
+
+	public long getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	public void setIdempotencyKey(long idempotencyKey) {
+		this.idempotencyKey = idempotencyKey;
+	}
+
+	//A string key such as a UUID is kept as a 64 bit hash, so two keys only clash at odds far beyond any real volume
+	public void setIdempotencyKey(String key) {
+		if (null == key) {
+			idempotencyKey = 0;
+			return;
+		}
+		//FNV-1a then the MurmurHash3 finaliser to spread short keys
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		//0 means no key
+		idempotencyKey = h == 0 ? 1 : h;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public long getEnqueueNanos() {
+		return enqueueNanos;
+	}
+
+	void setEnqueueNanos(long enqueueNanos) {
+		this.enqueueNanos = enqueueNanos;
+	}
+
+	//Which gateway resource the message was sent on, numbered from 0 across every shard. Messages of a group go back
+	//to the same one while it is free, see resources.affinity. -1 if the message has not been dispatched.
+	public int getSlot() {
+		ResourceManager r = resource;
+		return null == r ? -1 : r.slotNumber(slot);
+	}
+
+	public long getDispatchTime() {
+		return dispatchTime;
+	}
+
+	void setDispatchTime(long dispatchTime) {
+		this.dispatchTime = dispatchTime;
+	}
+
+	//Oldest first, then in the order the queue accepted them. Only messages never queued need the data to tell them apart.
+	@Override
+	public int compareTo(Message arg0) {
+		if (time != arg0.time) {
+			return time < arg0.time ? -1 : 1;
+		}
+		if (sequence != arg0.sequence) {
+			return sequence < arg0.sequence ? -1 : 1;
+		}
+		if (groupID != arg0.groupID) {
+			return groupID < arg0.groupID ? -1 : 1;
+		}
+		if (null == data || null == arg0.data) {
+			return null == data ? (null == arg0.data ? 0 : -1) : 1;
+		}
+		return data.compareTo(arg0.data);
+	}
+	
+	//A queued message is identified by its sequence, which is unique within the queue holding its group.
+	//Messages not yet queued fall back to comparing their fields.
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Message)) {
+			return false;
+		}
+		Message m = (Message) o;
+		if (sequence != 0 || m.sequence != 0) {
+			return sequence == m.sequence && groupID == m.groupID;
+		}
+		return groupID == m.groupID && time == m.time && lastMessage == m.lastMessage
+				&& (null == data ? null == m.data : data.equals(m.data));
+	}
+
+	//Only uses fields that are fixed once the message is queued so the hash stays the same after it is accepted
+	@Override
+	public int hashCode() {
+		return 31 * (int) (groupID ^ (groupID >>> 32)) + (int) (time ^ (time >>> 32));
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package com.jpm.queue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+//Binary layout of a Message used by the journal and snapshots: sequence, groupID, time, flags then the UTF-8 data
+//prefixed by its length, or -1 when there is no data. The flags are LAST for the last message of its group and KEYED
+//when the idempotency key follows the data, so records written before there were keys read the same.
+final class MessageCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte LAST = 1;
+	private static final byte KEYED = 2;
+
+	private MessageCodec() {
+	}
+
+	static byte[] encodeData(Message msg) {
+		return null == msg.getData() ? null : msg.getData().getBytes(UTF8);
+	}
+
+	static int size(Message msg, byte[] data) {
+		return 8 + 8 + 8 + 1 + 4 + (null == data ? 0 : data.length) + (msg.getIdempotencyKey() == 0 ? 0 : 8);
+	}
+
+	static void write(ByteBuffer buffer, Message msg, byte[] data) {
+		buffer.putLong(msg.getSequence());
+		buffer.putLong(msg.getGroupID());
+		buffer.putLong(msg.getTime());
+		long key = msg.getIdempotencyKey();
+		buffer.put((byte) ((msg.lastMessage ? LAST : 0) | (key == 0 ? 0 : KEYED)));
+		if (null == data) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(data.length);
+			buffer.put(data);
+		}
+		if (key != 0) {
+			buffer.putLong(key);
+		}
+	}
+
+	static Message read(ByteBuffer buffer) {
+		long sequence = buffer.getLong();
+		long groupID = buffer.getLong();
+		long time = buffer.getLong();
+		byte flags = buffer.get();
+		int length = buffer.getInt();
+		String data = null;
+		if (length >= 0) {
+			byte[] b = new byte[length];
+			buffer.get(b);
+			data = new String(b, UTF8);
+		}
+		Message msg = new Message(data, groupID, (flags & LAST) != 0, time);
+		msg.setSequence(sequence);
+		if ((flags & KEYED) != 0) {
+			msg.setIdempotencyKey(buffer.getLong());
+		}
+		return msg;
+	}
+}
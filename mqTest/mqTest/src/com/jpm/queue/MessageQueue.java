@@ -1,286 +1,1057 @@
-package com.jpm.queue;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
-public class MessageQueue extends ArrayList<Message> {
-
-	/**
-	 * Special case TreeSet that will reorder on removal of a message that differs in groupID from the last one removed.
-	 */
-	private static final long serialVersionUID = 681702890102712268L;
-	//Overload the pollFirst() function that we use to cause a reorder event
-	//We need to store a reference to the previous groupID's that have been processed
-	public Set<Long> processedGroupID = null; //This is public so alternative Comparators may be used 
-	//In order to remove interleaving, we need to ensure the last groupID processed receives the highest priority
-	public long lastGroupID = -1;
-	
-	private boolean reorder = false;
-	private Comparator<Message> comparator = null;
-	private boolean shutdown = false;
-	//Default location to recover and backup data
-	private static String backupFile = "backup.bin";
-	//Hold reference as its a singleton
-	private static MessageQueue queue = null;
-	//Set to hold a list of cancelled groupID's so if new ones are added to the queue they will be rejected
-	public Set<Long> cancelledGroups = null;
-	public Set<Long> completedGroups = null;
-
-	
-	
-	//Need to define the constructor
-	private MessageQueue() {
-		super();
-		comparator = new MessageComparator();
-		processedGroupID = new HashSet<Long>();
-		cancelledGroups = new HashSet<Long>();
-		completedGroups = new HashSet<Long>();
-	}
-
-	@Override
-	public boolean add(Message msg) {
-		boolean ret = false;
-		if (!shutdown) {
-			//Check if a message being added is in a group that is already terminated
-			synchronized (completedGroups) {
-				if (completedGroups.contains(msg.getGroupID())) {
-					Log.logger.severe("ERROR - Adding a Message that is from a group["+msg.getGroupID()+"] marked as completed");
-					return false;
-				} else if (msg.lastMessage) {
-					//Mark this message as the last one in the group so no more may be added
-					completedGroups.add(msg.getGroupID());
-				}
-			}
-			//Check if the group is marked as cancelled
-			synchronized (cancelledGroups) {
-				if (cancelledGroups.contains(msg.getGroupID())) {
-					Log.logger.info("Not processing Message as its group["+msg.getGroupID()+"] is marked as cancelled");
-					return false;
-				}
-			}
-			//Sync on the queue although it will limit one add or remove at a time
-			synchronized (this) {
-				//add it to the queue
-				ret = super.add(msg);
-				Log.logger.info("Queue size:"+queue.size());
-			}
-			if (ret)
-				reorder = true;
-		}
-		return ret;
-	}
-	
-	//Flush the queue
-	public void clear() {
-		synchronized (this) {
-			super.clear();
-		}
-	}
-	
-	public void clearCancelledGroupHistory() {
-		synchronized (cancelledGroups) {
-			cancelledGroups.clear();
-		}
-	}
-	
-	public void clearCompletedGroupHistory() {
-		synchronized (completedGroups) {
-			completedGroups.clear();
-		}
-	}
-	
-	public void clearProcessedGroupHistory() {
-		synchronized (processedGroupID) {
-			processedGroupID.clear();
-			lastGroupID = -1;
-		}
-	}
-	
-	public void setComparator(String compClass) {
-		if (null != compClass) {
-	        try {
-	            //Get the class
-	            @SuppressWarnings("unchecked")
-				Class<Comparator<Message>> c = (Class<Comparator<Message>>) Class.forName(compClass);
-	            if (null != c) {
-	            	setComparator(c.newInstance());
-	            	
-	            }
-	        } catch (Exception e) {
-	            Log.logger.severe("Cannot invoke new Comparator for messages from class ["+compClass+"]");
-	            
-	        }
-		}
-	}
-	
-	public void setComparator(Comparator<Message> c) {
-		if (null != c) {
-			Log.logger.info("Changed the default Comparator to ["+c.getClass().getName()+"]");
-			comparator = c;
-			reorder=true;
-		}
-	}
-	
-	//Check the queue is in the correct order then return the first message
-	public Message pollFirst() {
-		//Should check if anything has changed to make this inconsistent before reordering
-		if (reorder) {
-			Log.logger.fine("Triggering reordering of the queued messages. lastGroupID["+lastGroupID+"]");
-			Collections.sort(this,comparator);
-			Log.logger.fine("Reordering complete");
-		}
-		Message el;
-		synchronized (this) {
-			el = remove(0);
-		}
-		synchronized (processedGroupID) {
-			if (el.getGroupID() != lastGroupID) {
-				lastGroupID=el.getGroupID();
-				addProcessedGroupID(lastGroupID);
-				reorder = true;
-			}
-		}
-		return el;
-	}
-	
-	//Checks if the group is already cancelled, if not then process the cancellation and cleanup the queue accordingly
-	public boolean cancelMessageGroup(long groupID) {
-		boolean added = false;
-		synchronized (cancelledGroups) {
-			//Add returns true if the element has been added
-			added = cancelledGroups.add(groupID);
-		}
-		if (added) {
-			Log.logger.info("Cancelled groupID ["+groupID+"]");
-			//Remove any remaining messages from the queue
-			synchronized (this) {
-				removeMessageGroupMembers(groupID);
-			}
-		}
-		return added;
-	}
-	
-	//Removes all the group messages from the queue
-	public void removeMessageGroupMembers(long groupID) {
-		//Create a temp array
-		List<Message> r = new ArrayList<Message>();
-		for (Message msg : this) {
-			if (msg.getGroupID() == groupID) {
-				r.add(msg);
-			}
-		}
-		//Now remove them from the queue
-		Log.logger.info("Removing ["+r.size()+"] messages from the queue with groupID["+groupID+"]");
-		removeAll(r);
-		reorder = true;
-		r.clear();
-	}
-	
-	public void addProcessedGroupID(long groupID) {
-			processedGroupID.add(groupID);
-	}
-	
-	protected void shutdown() {
-		Log.logger.info("Shutting down the message queue");
-		//Block any new entries
-		shutdown = true;
-		//Serialise any data to disk
-		backupQueue();
-	}
-
-	public static String getBackupFile() {
-		return backupFile;
-	}
-
-	public static void setBackupFile(String backupFile) {
-		MessageQueue.backupFile = backupFile;
-	}
-
-	//Backup entire object in one go so it is straightforward to recover
-	public synchronized boolean backupQueue() {
-		boolean ok = false;
-		//Drain the queue to a list, then requeue the tasks in a new list.
-		Log.logger.info("Draining queue to list object");
-		File file = new File(backupFile);
-		if (file.exists()) {
-			Log.logger.info("Deleting existing queue file");
-			file.delete();
-		}
-		try {
-			file.createNewFile();
-			if (file.isFile()) {
-				Log.logger.info("Serialising queue objects to file[" + file.getName() + "]");
-				ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
-				out.writeObject(this); 
-				out.close();
-				ok = true;
-			} else {
-				Log.logger.severe("Queue file creation failed.");
-			}
-		} catch (Exception e) {
-			Log.logger.severe("Exception thrown whilst serialising queue tasks [" + e.getMessage() + "]");
-		}
-		return ok;
-	}
-	
-	//This will try to restore a backup queue first then create one if not found
-	public static MessageQueue getQueue() {
-		if (queue == null) {
-			synchronized(Scheduler.class){
-				if (queue == null) {
-					//Try to restore queue object from serialized backup
-					File file = new File(backupFile);
-					Log.logger.info("Trying to load backup queue file");
-					if (file.exists() && file.isFile()) {
-						try {
-							Log.logger.info("File found, loading...");
-							ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-							queue = (MessageQueue) in.readObject();
-							in.close();
-							//Important...reset the queue to working again!
-							queue.shutdown = false;
-							if (file.delete()) {
-								Log.logger.info("Deleted queue backup file");
-							} else {
-								Log.logger.severe("Error deleting queue backup file");
-							}
-							if (!queue.isEmpty()) {
-								Log.logger.info("There are " + queue.size() + " items in the restored queue");
-							} else {
-								Log.logger.info("There were no items in the restored queue");
-							}
-							Log.logger.info("Queue now primed with backed up tasks.");
-							return queue;
-						} catch (FileNotFoundException e) {
-							Log.logger.info("FilenotFound = " + e.getMessage());
-						} catch (IOException e) {
-							Log.logger.severe( "IOException thrown whilst loading queue tasks [" + e.getMessage() + "]");
-							if (file.delete()) {
-								Log.logger.info("Deleted queue backup file");
-							}
-						} catch (ClassNotFoundException e) {
-							Log.logger.severe( "ClassNotFoundException thrown whilst importing queue tasks [" + e.getMessage() + "]");
-						}
-					} else {
-						Log.logger.info("No backup queue file found");
-					}
-					Log.logger.info("Creating new queue");
-					queue = new MessageQueue();
-				}
-			}
-		}
-		return queue;
-	}
-	
+package com.jpm.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Special case queue that will reorder on removal of a message that differs in groupID from the last one removed.
+ * The storage and ordering is delegated to a QueueEngine.
+ */
+public class MessageQueue {
+
+	//Overload the pollFirst() function that we use to cause a reorder event
+	//We need to store a reference to the previous groupID's that have been processed
+	public GroupHistory processedGroupID = null; //This is public so alternative Comparators may be used 
+	//In order to remove interleaving, we need to ensure the last groupID processed receives the highest priority
+	public long lastGroupID = -1;
+	
+	private QueueEngine engine = null;
+	private Comparator<Message> comparator = null;
+	private boolean shutdown = false;
+	//Default location to recover and backup data
+	private static String backupFile = "backup.bin";
+	//The queue used when the Scheduler is not sharded
+	private static MessageQueue queue = null;
+	//Optional write ahead journal for that queue, recovered when it is first loaded
+	private static Journal defaultJournal = null;
+	//Where this queue is backed up to and journaled
+	private final File backup;
+	private Journal journal;
+	//Retention applied to each group history, 0 for no limit
+	private static int historyMaxEntries = 0;
+	private static long historyTTL = 0;
+	//How long the idempotency keys of delivered messages are remembered and how many at most, 0 to ignore the keys
+	private static long dedupWindow = 0;
+	private static int dedupMaxKeys = 0;
+	private IdempotencyCache dedup = null;
+	//A group whose oldest message has waited this many ms is moved ahead of the others, 0 to never do so
+	private long maxWait = 0;
+	private Clock clock = Clock.SYSTEM;
+	//Overflow for the backlog beyond the heap limit, only used by engines that support it
+	private SpillStore spill = null;
+	//Sequence given to the next message accepted
+	private long nextSequence = 1;
+	//Streams the rest of the backup into the queue after startup
+	private Thread loader = null;
+	private final SchedulerMetrics metrics = new SchedulerMetrics();
+	//Capacity, 0 for no limit. Once full the queue takes no more until it drains to lowWatermark of maxMessages and maxBytes.
+	private int maxMessages = 0;
+	private int maxGroupMessages = 0;
+	private long maxBytes = 0;
+	private double lowWatermark = 0.9;
+	private boolean full = false;
+	//What add() and addAll() do at capacity, and how many ms BLOCK waits for room, 0 for ever
+	private Overflow overflow = Overflow.BLOCK;
+	private long offerTimeout = 0;
+	//Producers blocked for room wait on this, spaceFreed counts the wake ups so none is missed
+	private final Object space = new Object();
+	private long spaceFreed = 0;
+	private volatile int blocked = 0;
+	//Set to hold a list of cancelled groupID's so if new ones are added to the queue they will be rejected
+	public GroupHistory cancelledGroups = null;
+	public GroupHistory completedGroups = null;
+
+	
+	
+	//Need to define the constructor
+	private MessageQueue(File backup, Journal journal) {
+		super();
+		this.backup = backup;
+		this.journal = journal;
+		MessageComparator c = new MessageComparator();
+		c.setQueue(this);
+		comparator = c;
+		processedGroupID = newHistory();
+		cancelledGroups = newHistory();
+		completedGroups = newHistory();
+		metrics.setQueue(this);
+		if (dedupWindow > 0) {
+			dedup = new IdempotencyCache(dedupWindow, dedupMaxKeys);
+		}
+		setEngine(new SortedQueueEngine());
+	}
+
+	//Groups still being worked on are never dropped from history, dropping them would change the order of
+	//their remaining messages or let new messages in after a termination
+	private GroupHistory newHistory() {
+		GroupHistory h = new GroupHistory();
+		h.setRetention(historyMaxEntries, historyTTL);
+		h.setPin(new GroupHistory.Pin() {
+			//Only called from trimHistory() which holds the queue monitor
+			public boolean isPinned(long groupID) {
+				return groupID == lastGroupID || engine.groupSize(groupID) > 0;
+			}
+		});
+		return h;
+	}
+
+	//Apply the retention policy. Must hold the queue monitor, which is always taken before a history's.
+	private void trimHistory() {
+		synchronized (processedGroupID) {
+			processedGroupID.trim();
+		}
+		synchronized (cancelledGroups) {
+			cancelledGroups.trim();
+		}
+		synchronized (completedGroups) {
+			completedGroups.trim();
+		}
+	}
+
+	//Adds with the queue's own overflow policy, see setOverflow()
+	public boolean add(Message msg) {
+		try {
+			return offer(msg, overflow, offerTimeout) == AddResult.ACCEPTED;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	//Adds the message unless its group is closed or cancelled. When the queue or the group is at capacity the
+	//overflow decides: BLOCK waits up to timeout ms for room, or as long as it takes if timeout is 0.
+	public AddResult offer(Message msg, Overflow overflow, long timeout) throws InterruptedException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		long position = 0;
+		for (;;) {
+			if (shutdown) {
+				return AddResult.REJECTED_SHUTDOWN;
+			}
+			long freed;
+			//Sync on the queue although it will limit one add or remove at a time
+			synchronized (this) {
+				//Check if a message being added is in a group that is already terminated or cancelled, under the
+				//queue monitor so a cancel cannot slip in before the add
+				synchronized (completedGroups) {
+					if (completedGroups.contains(msg.getGroupID())) {
+						metrics.rejectedCompleted();
+						Log.logger.severe("ERROR - Adding a Message that is from a group["+msg.getGroupID()+"] marked as completed");
+						return AddResult.REJECTED_COMPLETED;
+					}
+					synchronized (cancelledGroups) {
+						if (cancelledGroups.contains(msg.getGroupID())) {
+							if (msg.lastMessage) {
+								completedGroups.add(msg.getGroupID());
+							}
+							metrics.rejectedCancelled();
+							Log.logger.info("Not processing Message as its group["+msg.getGroupID()+"] is marked as cancelled");
+							return AddResult.REJECTED_CANCELLED;
+						}
+					}
+				}
+				if (isDuplicate(msg)) {
+					if (Log.logger.isLoggable(Level.FINE)) {
+						Log.logger.fine("Dropping a duplicate of idempotency key["+msg.getIdempotencyKey()+"] groupID["+msg.getGroupID()+"]");
+					}
+					return AddResult.DUPLICATE;
+				}
+				if (hasRoom(msg, overflow)) {
+					if (msg.lastMessage) {
+						//Mark this message as the last one in the group so no more may be added
+						synchronized (completedGroups) {
+							completedGroups.add(msg.getGroupID());
+						}
+					}
+					//add it to the queue
+					msg.setSequence(nextSequence++);
+					msg.setEnqueueNanos(System.nanoTime());
+					boolean ret = engine.add(msg);
+					if (ret) {
+						metrics.enqueued();
+						admitted(msg);
+					}
+					if (Log.logger.isLoggable(Level.FINE)) {
+						Log.logger.fine("Queue size:"+engine.size());
+					}
+					if (ret && null != journal) {
+						try {
+							position = journal.add(msg);
+						} catch (IOException e) {
+							journalFailed(e);
+						}
+					}
+					trimHistory();
+					//Wake a dispatcher waiting in takeFirst()
+					notify();
+					break;
+				}
+				if (overflow != Overflow.BLOCK || System.currentTimeMillis() >= deadline) {
+					metrics.rejectedFull();
+					Log.logger.warning("Rejected Message for group["+msg.getGroupID()+"] as the queue is full");
+					return AddResult.REJECTED_FULL;
+				}
+				freed = blocking();
+			}
+			awaitRoom(freed, deadline);
+		}
+		//Wait for the add to be on disk outside the queue lock so other adds can share the same force
+		if (position > 0) {
+			journal.commit(position);
+		}
+		return AddResult.ACCEPTED;
+	}
+	
+	public List<AddResult> addAll(Collection<Message> msgs) {
+		return addAll(msgs, overflow, offerTimeout);
+	}
+
+	//Adds a batch with the same checks as add() but taking each lock once and waking the dispatchers once.
+	//A last message in the batch closes its group to the messages after it, just as separate adds would.
+	//BLOCK waits for the queue to drop below its limits before taking the batch, anything still not fitting is
+	//rejected. Returns what happened to each message in the order given.
+	public List<AddResult> addAll(Collection<Message> msgs, Overflow overflow, long timeout) {
+		List<AddResult> results = new ArrayList<AddResult>(msgs.size());
+		if (overflow == Overflow.BLOCK) {
+			try {
+				awaitRoom(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			overflow = Overflow.REJECT;
+		}
+		if (shutdown) {
+			for (int i = 0; i < msgs.size(); i++) {
+				results.add(AddResult.REJECTED_SHUTDOWN);
+			}
+			return results;
+		}
+		int rejectedCompleted = 0;
+		int rejectedCancelled = 0;
+		int rejectedFull = 0;
+		int duplicates = 0;
+		long position = 0;
+		synchronized (this) {
+			//The whole batch is accepted at once
+			long now = System.nanoTime();
+			synchronized (completedGroups) {
+				synchronized (cancelledGroups) {
+					for (Message msg : msgs) {
+						if (completedGroups.contains(msg.getGroupID())) {
+							metrics.rejectedCompleted();
+							rejectedCompleted++;
+							results.add(AddResult.REJECTED_COMPLETED);
+							continue;
+						}
+						if (cancelledGroups.contains(msg.getGroupID())) {
+							if (msg.lastMessage) {
+								completedGroups.add(msg.getGroupID());
+							}
+							metrics.rejectedCancelled();
+							rejectedCancelled++;
+							results.add(AddResult.REJECTED_CANCELLED);
+							continue;
+						}
+						if (isDuplicate(msg)) {
+							duplicates++;
+							results.add(AddResult.DUPLICATE);
+							continue;
+						}
+						if (!hasRoom(msg, overflow)) {
+							metrics.rejectedFull();
+							rejectedFull++;
+							results.add(AddResult.REJECTED_FULL);
+							continue;
+						}
+						if (msg.lastMessage) {
+							completedGroups.add(msg.getGroupID());
+						}
+						msg.setSequence(nextSequence++);
+						msg.setEnqueueNanos(now);
+						engine.add(msg);
+						metrics.enqueued();
+						admitted(msg);
+						if (null != journal) {
+							try {
+								position = journal.add(msg);
+							} catch (IOException e) {
+								journalFailed(e);
+							}
+						}
+						results.add(AddResult.ACCEPTED);
+					}
+				}
+			}
+			trimHistory();
+			//Several messages may have arrived so wake every waiting dispatcher
+			notifyAll();
+		}
+		if (rejectedCompleted > 0) {
+			Log.logger.severe("ERROR - ["+rejectedCompleted+"] Messages in a batch were from groups marked as completed");
+		}
+		if (rejectedCancelled > 0) {
+			Log.logger.info("Not processing ["+rejectedCancelled+"] Messages in a batch as their groups are marked as cancelled");
+		}
+		if (duplicates > 0 && Log.logger.isLoggable(Level.FINE)) {
+			Log.logger.fine("Dropped ["+duplicates+"] duplicate Messages in a batch");
+		}
+		if (rejectedFull > 0) {
+			Log.logger.warning("Rejected ["+rejectedFull+"] Messages in a batch as the queue is full");
+		}
+		if (Log.logger.isLoggable(Level.FINE)) {
+			Log.logger.fine("Added a batch of ["+msgs.size()+"] messages");
+		}
+		//The last record being on disk means the whole batch is
+		if (position > 0) {
+			journal.commit(position);
+		}
+		return results;
+	}
+
+	//Whether the message's idempotency key is queued, with the gateway or delivered within the window.
+	//Called holding the queue monitor, which keeps the check and admitted() together.
+	private boolean isDuplicate(Message msg) {
+		if (null == dedup || msg.getIdempotencyKey() == 0) {
+			return false;
+		}
+		if (dedup.contains(msg.getIdempotencyKey(), clock.currentTimeMillis())) {
+			metrics.duplicate();
+			return true;
+		}
+		return false;
+	}
+
+	private void admitted(Message msg) {
+		if (null != dedup && msg.getIdempotencyKey() != 0) {
+			dedup.admit(msg.getIdempotencyKey(), msg.getGroupID());
+		}
+	}
+
+	//Whether the message fits within the limits, making room by dropping the next message of its group if the
+	//overflow allows. Called holding the queue monitor.
+	private boolean hasRoom(Message msg, Overflow overflow) {
+		if (maxMessages <= 0 && maxGroupMessages <= 0 && maxBytes <= 0) {
+			return true;
+		}
+		boolean room = (maxGroupMessages <= 0 || engine.groupSize(msg.getGroupID()) < maxGroupMessages)
+				&& !full(SpillStore.footprint(msg));
+		if (!room && overflow == Overflow.DROP_OLDEST) {
+			Message dropped = engine.pollGroupHead(msg.getGroupID());
+			if (null != dropped) {
+				metrics.droppedOldest();
+				//Journaled as done with so it is not recovered
+				completed(dropped, false);
+				if (Log.logger.isLoggable(Level.FINE)) {
+					Log.logger.fine("Dropped message with data["+dropped.getData()+"] groupID["+dropped.getGroupID()+"] to make room");
+				}
+				return true;
+			}
+		}
+		return room;
+	}
+
+	//Once past maxMessages or maxBytes the queue stays full until it drains to the low watermark, so producers are
+	//let back in a batch at a time rather than one message each time one is dispatched
+	private boolean full(long adding) {
+		long size = engine.size();
+		long bytes = engine.bytes();
+		if (full) {
+			full = (maxMessages > 0 && size > maxMessages * lowWatermark) || (maxBytes > 0 && bytes > maxBytes * lowWatermark);
+		}
+		if (!full) {
+			full = (maxMessages > 0 && size >= maxMessages) || (maxBytes > 0 && bytes + adding > maxBytes);
+		}
+		return full;
+	}
+
+	//A producer is about to wait for room, returns the wake ups seen so far. Called holding the queue monitor.
+	private long blocking() {
+		synchronized (space) {
+			blocked++;
+			return spaceFreed;
+		}
+	}
+
+	//Producers wait on their own monitor so a dispatcher's notify() on the queue never wakes one by mistake
+	private void awaitRoom(long freed, long deadline) throws InterruptedException {
+		synchronized (space) {
+			try {
+				while (spaceFreed == freed && !shutdown) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						return;
+					}
+					space.wait(wait);
+				}
+			} finally {
+				blocked--;
+			}
+		}
+	}
+
+	//Wait up to timeout ms, or for ever if 0, until the queue is below its limits
+	private void awaitRoom(long timeout) throws InterruptedException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		for (;;) {
+			long freed;
+			synchronized (this) {
+				if (shutdown || !full(0) || System.currentTimeMillis() >= deadline) {
+					return;
+				}
+				freed = blocking();
+			}
+			awaitRoom(freed, deadline);
+		}
+	}
+
+	//Messages have left the queue, wake any blocked producers once it is below its limits. Holds the queue monitor.
+	private void freed() {
+		if (blocked > 0 && !full(0)) {
+			synchronized (space) {
+				spaceFreed++;
+				space.notifyAll();
+			}
+		}
+	}
+	
+	//Put back a recovered message without checking its group, only journaling it if asked
+	synchronized void restore(Message msg, boolean record) {
+		engine.add(msg);
+		if (null != dedup && msg.getIdempotencyKey() != 0) {
+			dedup.admit(msg.getIdempotencyKey(), msg.getGroupID());
+		}
+		if (record && null != journal) {
+			try {
+				journal.add(msg);
+			} catch (IOException e) {
+				journalFailed(e);
+			}
+		}
+		notify();
+	}
+	
+	//For a restored message that never had one
+	synchronized long takeSequence() {
+		return nextSequence++;
+	}
+
+	synchronized void advanceSequence(long sequence) {
+		nextSequence = Math.max(nextSequence, sequence + 1);
+	}
+	
+	synchronized long getNextSequence() {
+		return nextSequence;
+	}
+	
+	//Puts a message the gateway asked to retry back in the queue, it sorts ahead of the rest of its group as it is older.
+	//Returns false if the group has been cancelled since it was dispatched.
+	public boolean requeue(Message msg) {
+		synchronized (this) {
+			synchronized (cancelledGroups) {
+				if (cancelledGroups.contains(msg.getGroupID())) {
+					return false;
+				}
+			}
+			engine.add(msg);
+			notify();
+		}
+		return true;
+	}
+
+	//The gateway has finished with a message
+	public void completed(Message msg) {
+		completed(msg, true);
+	}
+
+	//Done with a message, which was delivered or else failed or was dropped. Only a delivered message's idempotency key
+	//is remembered so the producer may send the others again.
+	void completed(Message msg, boolean delivered) {
+		if (null != dedup && msg.getIdempotencyKey() != 0) {
+			if (delivered) {
+				dedup.delivered(msg.getIdempotencyKey(), clock.currentTimeMillis());
+			} else {
+				dedup.forget(msg.getIdempotencyKey());
+			}
+		}
+		if (null != journal) {
+			try {
+				journal.complete(msg);
+			} catch (IOException e) {
+				journalFailed(e);
+			}
+		}
+	}
+	
+	//Journal failures are logged but do not stop the queue working
+	private void journalFailed(IOException e) {
+		Log.logger.severe("Error writing to the journal ["+e.getMessage()+"]");
+	}
+	
+	private void journal(byte type) {
+		if (null != journal) {
+			try {
+				journal.append(type);
+			} catch (IOException e) {
+				journalFailed(e);
+			}
+		}
+	}
+	
+	public synchronized int size() {
+		return engine.size();
+	}
+	
+	public synchronized int groupSize(long groupID) {
+		return engine.groupSize(groupID);
+	}
+	
+	//Rough heap size of the queued messages, see SpillStore.footprint()
+	public synchronized long bytes() {
+		return engine.bytes();
+	}
+	
+	public synchronized int groupCount() {
+		return engine.groupCount();
+	}
+	
+	public SchedulerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public synchronized boolean isEmpty() {
+		return engine.isEmpty();
+	}
+	
+	//Flush the queue
+	public void clear() {
+		synchronized (this) {
+			engine.clear();
+			journal(Journal.CLEAR_QUEUE);
+			if (null != dedup) {
+				//Keys with the gateway are lost too, a duplicate of one may slip in while it is there
+				dedup.clearLive();
+			}
+			freed();
+		}
+	}
+	
+	//The histories are cleared under the queue monitor so a journal checkpoint sees them agree with their records
+	public void clearCancelledGroupHistory() {
+		synchronized (this) {
+			synchronized (cancelledGroups) {
+				cancelledGroups.clear();
+				journal(Journal.CLEAR_CANCELLED);
+			}
+		}
+	}
+	
+	public void clearCompletedGroupHistory() {
+		synchronized (this) {
+			synchronized (completedGroups) {
+				completedGroups.clear();
+				journal(Journal.CLEAR_COMPLETED);
+			}
+		}
+	}
+	
+	public void clearProcessedGroupHistory() {
+		synchronized (this) {
+			synchronized (processedGroupID) {
+				processedGroupID.clear();
+				lastGroupID = -1;
+			}
+			engine.processedHistoryCleared();
+			journal(Journal.CLEAR_PROCESSED);
+		}
+	}
+	
+	public void setEngine(String engineClass) {
+		if (null != engineClass) {
+	        try {
+	            //Get the class
+	            Class<?> c = Class.forName(engineClass);
+	            setEngine((QueueEngine) c.getDeclaredConstructor().newInstance());
+	        } catch (Exception e) {
+	            Log.logger.severe("Cannot invoke new QueueEngine from class ["+engineClass+"]");
+	        }
+		}
+	}
+	
+	//Swap the engine, moving across anything already queued
+	public synchronized void setEngine(QueueEngine e) {
+		if (null != e) {
+			Log.logger.info("Changed the queue engine to ["+e.getClass().getName()+"]");
+			e.setQueue(this);
+			e.setComparator(comparator);
+			if (null != engine) {
+				for (Message msg : engine.toList()) {
+					e.add(msg);
+				}
+				engine.clear();
+			}
+			engine = e;
+		}
+	}
+	
+	public QueueEngine getEngine() {
+		return engine;
+	}
+	
+	public void setComparator(String compClass) {
+		if (null != compClass) {
+	        try {
+	            //Get the class
+	            @SuppressWarnings("unchecked")
+				Class<Comparator<Message>> c = (Class<Comparator<Message>>) Class.forName(compClass);
+	            if (null != c) {
+	            	setComparator(c.newInstance());
+	            	
+	            }
+	        } catch (Exception e) {
+	            Log.logger.severe("Cannot invoke new Comparator for messages from class ["+compClass+"]");
+	            
+	        }
+		}
+	}
+	
+	public synchronized void setComparator(Comparator<Message> c) {
+		if (null != c) {
+			if (c instanceof QueueComparator) {
+				((QueueComparator) c).setQueue(this);
+			}
+			Log.logger.info("Changed the default Comparator to ["+c.getClass().getName()+"]");
+			comparator = c;
+			engine.setComparator(c);
+		}
+	}
+	
+	//Ask the engine for the next message in order, returns null if the queue is empty
+	public Message pollFirst() {
+		synchronized (this) {
+			promoteOverdue();
+			return dispatched(engine.pollFirst());
+		}
+	}
+
+	//The next message if it is for the group, otherwise null
+	public Message pollFirst(long groupID) {
+		synchronized (this) {
+			promoteOverdue();
+			return dispatched(engine.pollFirst(groupID));
+		}
+	}
+
+	//Group affinity keeps serving lastGroupID and then the processed groups, so a busy group can hold a new one back
+	//for ever. Once the oldest queued message has waited maxWait its group takes over as lastGroupID, which bounds
+	//the wait. Under sustained overload every head is overdue and the order becomes first come first served.
+	private void promoteOverdue() {
+		if (maxWait <= 0) {
+			return;
+		}
+		Message oldest = engine.oldest();
+		if (null == oldest || oldest.getGroupID() == lastGroupID || clock.currentTimeMillis() - oldest.getTime() < maxWait) {
+			return;
+		}
+		synchronized (processedGroupID) {
+			long previousGroupID = lastGroupID;
+			lastGroupID = oldest.getGroupID();
+			addProcessedGroupID(lastGroupID);
+			engine.lastGroupChanged(previousGroupID);
+		}
+		metrics.groupSwitched();
+		metrics.aged();
+	}
+
+	//Bookkeeping for a message leaving the queue, called holding the queue monitor
+	private Message dispatched(Message el) {
+		if (null == el) {
+			return null;
+		}
+		freed();
+		synchronized (processedGroupID) {
+			if (el.getGroupID() != lastGroupID) {
+				long previousGroupID = lastGroupID;
+				lastGroupID=el.getGroupID();
+				addProcessedGroupID(lastGroupID);
+				engine.lastGroupChanged(previousGroupID);
+				metrics.groupSwitched();
+			} else {
+				//Keep the group recent in the history
+				processedGroupID.add(lastGroupID);
+			}
+		}
+		trimHistory();
+		if (null != journal) {
+			try {
+				journal.dispatch(el);
+			} catch (IOException e) {
+				journalFailed(e);
+			}
+		}
+		return el;
+	}
+	
+	//Wait until there is a message to return
+	public synchronized Message takeFirst() throws InterruptedException {
+		Message el;
+		while (null == (el = pollFirst())) {
+			wait();
+		}
+		return el;
+	}
+
+	//Wait for the next message then take up to max messages in a row from its group. When the group runs out
+	//early keep waiting for more of it until linger ms have passed since the first was taken.
+	public synchronized List<Message> takeBatch(int max, long linger) throws InterruptedException {
+		return fillBatch(takeFirst(), max, linger);
+	}
+
+	//As takeBatch() but returns null straight away if there is nothing queued
+	public synchronized List<Message> pollBatch(int max, long linger) throws InterruptedException {
+		Message el = pollFirst();
+		return null == el ? null : fillBatch(el, max, linger);
+	}
+
+	private List<Message> fillBatch(Message el, int max, long linger) throws InterruptedException {
+		List<Message> batch = new ArrayList<Message>(max);
+		batch.add(el);
+		long deadline = System.currentTimeMillis() + linger;
+		while (batch.size() < max) {
+			Message next = pollFirst(el.getGroupID());
+			if (null != next) {
+				batch.add(next);
+				continue;
+			}
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			//The wake up may have been for a message of another group, pass it on to a dispatcher that can take it
+			if (!engine.isEmpty()) {
+				notify();
+			}
+			wait(wait);
+		}
+		return batch;
+	}
+
+	//Wait until there is something queued without taking it
+	public synchronized void awaitMessage() throws InterruptedException {
+		while (engine.isEmpty()) {
+			wait();
+		}
+	}
+	
+	//Checks if the group is already cancelled, if not then process the cancellation and cleanup the queue accordingly.
+	//Returns the number of queued messages dropped, or -1 if the group was already cancelled.
+	public int cancelMessageGroup(long groupID) {
+		int removed;
+		long position = 0;
+		//Marking and removing under the queue monitor means no message for the group can be added in between.
+		//The engines only touch the group's own messages so the monitor is held briefly.
+		synchronized (this) {
+			synchronized (cancelledGroups) {
+				//Add returns true if the element has been added
+				if (!cancelledGroups.add(groupID)) {
+					return -1;
+				}
+			}
+			removed = removeMessageGroupMembers(groupID);
+			if (null != journal) {
+				try {
+					position = journal.append(Journal.CANCEL, groupID);
+				} catch (IOException e) {
+					journalFailed(e);
+				}
+			}
+		}
+		metrics.cancelled(removed);
+		Log.logger.info("Cancelled groupID ["+groupID+"], removed ["+removed+"] queued messages");
+		if (position > 0) {
+			journal.commit(position);
+		}
+		return removed;
+	}
+	
+	//Closes the group without a last message, as if one had been added. Anything already queued is still sent.
+	//Returns false if the group was already closed.
+	public boolean terminateMessageGroup(long groupID) {
+		long position = 0;
+		synchronized (this) {
+			synchronized (completedGroups) {
+				if (!completedGroups.add(groupID)) {
+					return false;
+				}
+			}
+			if (null != journal) {
+				try {
+					position = journal.append(Journal.TERMINATE, groupID);
+				} catch (IOException e) {
+					journalFailed(e);
+				}
+			}
+			trimHistory();
+		}
+		Log.logger.info("Terminated groupID ["+groupID+"]");
+		if (position > 0) {
+			journal.commit(position);
+		}
+		return true;
+	}
+
+	//Removes all the group messages from the queue and returns how many there were
+	public synchronized int removeMessageGroupMembers(long groupID) {
+		int removed = engine.removeGroup(groupID);
+		if (null != dedup) {
+			dedup.forgetGroup(groupID);
+		}
+		freed();
+		return removed;
+	}
+	
+	public void addProcessedGroupID(long groupID) {
+			processedGroupID.add(groupID);
+	}
+	
+	protected void shutdown() {
+		Log.logger.info("Shutting down the message queue");
+		//Block any new entries
+		shutdown = true;
+		//and let go of any producer waiting for room
+		synchronized (space) {
+			space.notifyAll();
+		}
+		//Serialise any data to disk, the journal is only needed if that fails
+		boolean ok = backupQueue();
+		if (null != journal) {
+			if (ok) {
+				journal.delete();
+			} else {
+				journal.close();
+			}
+		}
+		//The spilled messages are in the snapshot, or the journal if that failed
+		if (null != spill) {
+			synchronized (this) {
+				spill.delete();
+			}
+		}
+	}
+
+	//Limits on the messages queued in total and per group and on their rough heap size, 0 for no limit.
+	//lowWatermark is the fraction of maxMessages and maxBytes the queue has to drain to before taking more once full.
+	public synchronized void setCapacity(int maxMessages, int maxGroupMessages, long maxBytes, double lowWatermark) {
+		this.maxMessages = Math.max(0, maxMessages);
+		this.maxGroupMessages = Math.max(0, maxGroupMessages);
+		this.maxBytes = Math.max(0, maxBytes);
+		this.lowWatermark = Math.max(0, Math.min(1, lowWatermark));
+		full = false;
+		freed();
+	}
+
+	public synchronized void setOverflow(Overflow overflow, long offerTimeout) {
+		this.overflow = overflow;
+		this.offerTimeout = Math.max(0, offerTimeout);
+	}
+
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	public synchronized void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	//Only needs changing when the queue is driven by something other than real time
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	//Must be set before the engine is, the engine picks it up when it is attached
+	public synchronized void setSpill(SpillStore spill) {
+		this.spill = spill;
+	}
+
+	public SpillStore getSpill() {
+		return spill;
+	}
+
+	public static String getBackupFile() {
+		return backupFile;
+	}
+
+	public static void setBackupFile(String backupFile) {
+		MessageQueue.backupFile = backupFile;
+	}
+
+	//Must be set before the queue is first loaded
+	public static void setJournal(Journal journal) {
+		MessageQueue.defaultJournal = journal;
+	}
+
+	//Must be set before the queue is first loaded, 0 for either means no limit
+	//Applies to queues opened after it is set. window is how long the key of a delivered message is remembered and
+	//maxKeys bounds how many are, shortening the window if more are delivered within it. A window of 0 ignores the keys.
+	public static void setDeduplication(long window, int maxKeys) {
+		dedupWindow = window;
+		dedupMaxKeys = maxKeys;
+	}
+
+	//Idempotency keys remembered, both live and delivered
+	public int getIdempotencyKeys() {
+		return null == dedup ? 0 : dedup.size();
+	}
+
+	public static void setHistoryRetention(int maxEntries, long ttl) {
+		historyMaxEntries = maxEntries;
+		historyTTL = ttl;
+	}
+
+	//Groups dropped from the processed, cancelled and completed history
+	public long getHistoryEvictions() {
+		long n;
+		synchronized (processedGroupID) {
+			n = processedGroupID.getEvicted();
+		}
+		synchronized (cancelledGroups) {
+			n += cancelledGroups.getEvicted();
+		}
+		synchronized (completedGroups) {
+			n += completedGroups.getEvicted();
+		}
+		return n;
+	}
+
+	//Write the whole queue to a snapshot so it is straightforward to recover
+	public boolean backupQueue() {
+		//Anything still to be streamed in from the last backup has to be in the queue first
+		waitForLoader();
+		boolean ok = false;
+		synchronized (this) {
+			try {
+				Log.logger.info("Writing queue snapshot to file[" + backup.getName() + "]");
+				QueueSnapshot.write(this, backup);
+				ok = true;
+			} catch (Exception e) {
+				Log.logger.severe("Exception thrown whilst writing the queue snapshot [" + e.getMessage() + "]");
+			}
+		}
+		return ok;
+	}
+	
+	private void waitForLoader() {
+		Thread t = loader;
+		if (null != t) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	//The queue used when the Scheduler is not sharded, loaded from backupFile and the journal set with setJournal()
+	public static MessageQueue getQueue() {
+		if (queue == null) {
+			synchronized(Scheduler.class){
+				if (queue == null) {
+					queue = open(backupFile, defaultJournal);
+				}
+			}
+		}
+		return queue;
+	}
+
+	//This will try to restore a backup queue first then create one if not found, then replay the journal on top.
+	//Messages in the backup are streamed in on another thread so the queue can be used straight away.
+	//The journal may be null, each queue must have its own backup file and journal.
+	public static MessageQueue open(String backupFile, Journal journal) {
+		File file = new File(backupFile);
+		MessageQueue q = new MessageQueue(file, journal);
+		QueueSnapshot snapshot = openBackup(file, q);
+		LongHashSet journalled = new LongHashSet();
+		if (null != journal) {
+			try {
+				journalled = journal.recover(q);
+			} catch (IOException e) {
+				Log.logger.severe("IOException thrown whilst recovering the journal [" + e.getMessage() + "], continuing without it");
+				q.journal = null;
+			}
+		}
+		if (null != snapshot) {
+			q.startLoader(snapshot, file, journalled);
+		}
+		return q;
+	}
+	
+	private static QueueSnapshot openBackup(File file, MessageQueue q) {
+		Log.logger.info("Trying to load backup queue file");
+		if (file.exists() && file.isFile()) {
+			try {
+				Log.logger.info("File found, loading...");
+				QueueSnapshot snapshot = QueueSnapshot.open(file, q);
+				Log.logger.info("There are " + snapshot.getCount() + " items in the backup to restore");
+				return snapshot;
+			} catch (IOException e) {
+				Log.logger.severe( "IOException thrown whilst loading queue tasks [" + e.getMessage() + "]");
+				if (file.renameTo(new File(file.getPath() + ".bad"))) {
+					Log.logger.severe("Kept the unreadable backup as [" + file.getPath() + ".bad]");
+				}
+			}
+		} else {
+			Log.logger.info("No backup queue file found");
+		}
+		return null;
+	}
+	
+	//Messages the journal already recovered are skipped. The backup is only removed once every message
+	//from it is in the queue, and in the journal when there is one.
+	private void startLoader(final QueueSnapshot snapshot, final File file, final LongHashSet journalled) {
+		loader = new Thread() {
+			public void run() {
+				long loaded = 0;
+				boolean ok = false;
+				try {
+					Message msg;
+					while (null != (msg = snapshot.next())) {
+						if (!journalled.contains(msg.getSequence())) {
+							restore(msg, true);
+							loaded++;
+						}
+					}
+					ok = true;
+				} catch (IOException e) {
+					Log.logger.severe("IOException thrown whilst loading queue tasks [" + e.getMessage() + "]");
+				} finally {
+					snapshot.close();
+				}
+				if (null != journal) {
+					journal.commit(Long.MAX_VALUE);
+				}
+				Log.logger.info("Queue now primed with [" + loaded + "] backed up tasks.");
+				if (ok) {
+					if (file.delete()) {
+						Log.logger.info("Deleted queue backup file");
+					} else {
+						Log.logger.severe("Error deleting queue backup file");
+					}
+				} else if (file.renameTo(new File(file.getPath() + ".bad"))) {
+					Log.logger.severe("Kept the unreadable part of the backup as [" + file.getPath() + ".bad]");
+				}
+				loader = null;
+			}
+		};
+		loader.setName("BackupLoader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+	
 }
\ No newline at end of file
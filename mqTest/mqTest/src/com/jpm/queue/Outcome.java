@@ -0,0 +1,11 @@
+package com.jpm.queue;
+
+//How the gateway finished with a message, passed to Message.completed()
+public enum Outcome {
+	//Processed, the message is done with
+	SUCCESS,
+	//Could not be processed and should not be tried again
+	FAILURE,
+	//Could not be processed this time, the message goes back to the head of its group to be sent again
+	RETRY
+}
@@ -0,0 +1,11 @@
+package com.jpm.queue;
+
+//What an add does when the queue, or the message's group, is at capacity
+public enum Overflow {
+	//Wait for the dispatchers to make room, up to a timeout
+	BLOCK,
+	//Return AddResult.REJECTED_FULL straight away
+	REJECT,
+	//Drop the next queued message of the same group to make room, rejecting if the group has none queued
+	DROP_OLDEST
+}
@@ -0,0 +1,10 @@
+package com.jpm.queue;
+
+import java.util.Comparator;
+
+//A comparator that orders messages using the state of the queue holding them. The queue binds itself when the
+//comparator is set so each queue, including each shard, needs its own instance.
+public interface QueueComparator extends Comparator<Message> {
+
+	public void setQueue(MessageQueue queue);
+}
@@ -0,0 +1,60 @@
+package com.jpm.queue;
+
+import java.util.Comparator;
+import java.util.List;
+
+//Storage and ordering strategy behind the MessageQueue. The queue only calls an engine whilst holding its own monitor
+//so implementations do not need to be thread safe. Select one with the engine.class property.
+public interface QueueEngine {
+
+	//Called when the engine is attached so it can read lastGroupID and processedGroupID from the queue
+	public void setQueue(MessageQueue queue);
+
+	public void setComparator(Comparator<Message> comparator);
+
+	public boolean add(Message msg);
+
+	//Remove and return the next message to dispatch, or null if there is nothing queued
+	public Message pollFirst();
+
+	//Remove and return the next message only if it belongs to the group, otherwise null
+	public Message pollFirst(long groupID);
+
+	//Remove and return the next message of the group even if another group is being served, null if it has none queued
+	public Message pollGroupHead(long groupID);
+
+	//The queue has moved lastGroupID on from previousGroupID and marked the new group as processed
+	public void lastGroupChanged(long previousGroupID);
+
+	//The processed group history and lastGroupID have been reset
+	public void processedHistoryCleared();
+
+	//Removes all the queued messages for the group and returns how many were removed.
+	//Called with the queue monitor held so it should only do work in proportion to the group where it can.
+	public int removeGroup(long groupID);
+
+	public int size();
+
+	//The message that has been queued the longest, null if there is nothing queued
+	public Message oldest();
+
+	//Number of messages queued for the group
+	public int groupSize(long groupID);
+
+	//Number of groups with messages queued
+	public int groupCount();
+
+	//Rough heap size of every queued message, as SpillStore.footprint() counts them
+	public long bytes();
+
+	public boolean isEmpty();
+
+	public void clear();
+
+	//Copy of the queued messages in the order they would be dispatched if nothing else changed
+	public List<Message> toList();
+
+	//Adds the queued messages held in memory to messages in no particular order and returns the spill store positions
+	//of the rest. Only copies references so a journal checkpoint can take it holding the queue monitor.
+	public long[] copy(List<Message> messages);
+}
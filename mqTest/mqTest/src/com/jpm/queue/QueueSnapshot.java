@@ -0,0 +1,287 @@
+package com.jpm.queue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+//Versioned binary image of the queue written by backupQueue(). The group state comes first with its own checksum,
+//followed by the messages in dispatch order as [length][crc32][MessageCodec record] and a zero length to finish.
+//Reading is streamed so the head of the queue can be dispatched before the rest has loaded. A backup written by older
+//versions with Java serialization is read in one go and loaded the same way, the next backup replaces it.
+class QueueSnapshot {
+
+	static final int MAGIC = 0x4D51534E;
+	static final int VERSION = 1;
+	//First two bytes of a Java serialization stream, as written by older versions
+	private static final int JAVA_SERIALIZED = 0xACED;
+
+	private final DataInputStream in;
+	private final long count;
+	private long read = 0;
+	private final CRC32 crc = new CRC32();
+	private byte[] record = new byte[256];
+	//Messages of an older backup and the queue to number them in, null for a snapshot
+	private final Iterator<Message> legacy;
+	private final MessageQueue queue;
+
+	private QueueSnapshot(DataInputStream in, long count) {
+		this.in = in;
+		this.count = count;
+		legacy = null;
+		queue = null;
+	}
+
+	private QueueSnapshot(List<Message> messages, MessageQueue queue) {
+		in = null;
+		count = messages.size();
+		legacy = messages.iterator();
+		this.queue = queue;
+	}
+
+	//Writes to a temporary file first so a failure part way through leaves any previous snapshot alone
+	static void write(MessageQueue queue, File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			List<Message> messages = queue.getEngine().toList();
+			ByteArrayOutputStream state = new ByteArrayOutputStream();
+			DataOutputStream s = new DataOutputStream(state);
+			s.writeLong(queue.lastGroupID);
+			s.writeLong(queue.getNextSequence());
+			writeGroups(s, queue.processedGroupID);
+			writeGroups(s, queue.cancelledGroups);
+			writeGroups(s, queue.completedGroups);
+			s.writeLong(messages.size());
+			s.flush();
+			byte[] b = state.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(b);
+			out.writeInt(b.length);
+			out.write(b);
+			out.writeInt((int) crc.getValue());
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			for (Message msg : messages) {
+				byte[] data = MessageCodec.encodeData(msg);
+				int size = MessageCodec.size(msg, data);
+				if (buffer.capacity() < size) {
+					buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+				}
+				buffer.clear();
+				MessageCodec.write(buffer, msg, data);
+				crc.reset();
+				crc.update(buffer.array(), 0, size);
+				out.writeInt(size);
+				out.writeInt((int) crc.getValue());
+				out.write(buffer.array(), 0, size);
+			}
+			out.writeInt(0);
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Cannot replace [" + file + "]");
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Cannot rename [" + tmp + "] to [" + file + "]");
+		}
+	}
+
+	//Oldest first so reading them back keeps the history in the same order
+	private static void writeGroups(DataOutputStream out, GroupHistory groups) throws IOException {
+		long[] ids;
+		synchronized (groups) {
+			ids = groups.toArray();
+		}
+		out.writeInt(ids.length);
+		for (long groupID : ids) {
+			out.writeLong(groupID);
+		}
+	}
+
+	//Reads the group state into the queue and leaves the messages to be streamed with next()
+	static QueueSnapshot open(File file, MessageQueue queue) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			int magic = in.readInt();
+			if (magic != MAGIC) {
+				if ((magic >>> 16) == JAVA_SERIALIZED) {
+					in.close();
+					return openLegacy(file, queue);
+				}
+				throw new IOException("Not a queue snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version [" + version + "]");
+			}
+			byte[] b = new byte[in.readInt()];
+			in.readFully(b);
+			CRC32 crc = new CRC32();
+			crc.update(b);
+			if (in.readInt() != (int) crc.getValue()) {
+				throw new IOException("Snapshot group state failed its checksum");
+			}
+			DataInputStream s = new DataInputStream(new ByteArrayInputStream(b));
+			queue.lastGroupID = s.readLong();
+			queue.advanceSequence(s.readLong() - 1);
+			readGroups(s, queue.processedGroupID);
+			readGroups(s, queue.cancelledGroups);
+			readGroups(s, queue.completedGroups);
+			return new QueueSnapshot(in, s.readLong());
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private static void readGroups(DataInputStream in, GroupHistory groups) throws IOException {
+		for (int i = in.readInt(); i > 0; i--) {
+			groups.add(in.readLong());
+		}
+	}
+
+	//The MessageQueue older versions serialized was an ArrayList of the queued messages holding the group state
+	private static QueueSnapshot openLegacy(File file, MessageQueue queue) throws IOException {
+		Log.logger.info("Backup was written by an older version using Java serialization, converting it");
+		LegacyInputStream in = new LegacyInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		LegacyQueue old;
+		try {
+			old = (LegacyQueue) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Old backup has an unknown class [" + e.getMessage() + "]");
+		} catch (ClassCastException e) {
+			throw new IOException("Old backup does not hold a queue");
+		} finally {
+			in.close();
+		}
+		queue.lastGroupID = old.lastGroupID;
+		addGroups(old.processedGroupID, queue.processedGroupID);
+		addGroups(old.cancelledGroups, queue.cancelledGroups);
+		addGroups(old.completedGroups, queue.completedGroups);
+		List<Message> messages = new ArrayList<Message>(old.size());
+		for (Message msg : old) {
+			//Made again as deserializing leaves the transient fields unset rather than at their initial values
+			messages.add(new Message(msg.getData(), msg.getGroupID(), msg.lastMessage, msg.getTime()));
+		}
+		return new QueueSnapshot(messages, queue);
+	}
+
+	private static void addGroups(Set<Long> ids, GroupHistory groups) {
+		if (null != ids) {
+			for (Long groupID : ids) {
+				groups.add(groupID);
+			}
+		}
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	//Returns the next message or null once they have all been read
+	Message next() throws IOException {
+		if (null != legacy) {
+			if (!legacy.hasNext()) {
+				return null;
+			}
+			Message msg = legacy.next();
+			msg.setSequence(queue.takeSequence());
+			read++;
+			return msg;
+		}
+		try {
+			int length = in.readInt();
+			if (length == 0) {
+				if (read != count) {
+					throw new IOException("Snapshot ended after [" + read + "] of [" + count + "] messages");
+				}
+				return null;
+			}
+			int checksum = in.readInt();
+			if (length < 0 || length > 1 << 30) {
+				throw new IOException("Bad record length [" + length + "]");
+			}
+			if (record.length < length) {
+				record = new byte[Math.max(length, record.length * 2)];
+			}
+			in.readFully(record, 0, length);
+			crc.reset();
+			crc.update(record, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("Snapshot record [" + read + "] failed its checksum");
+			}
+			read++;
+			return MessageCodec.read(ByteBuffer.wrap(record, 0, length));
+		} catch (EOFException e) {
+			throw new IOException("Snapshot truncated after [" + read + "] of [" + count + "] messages");
+		}
+	}
+
+	void close() {
+		if (null == in) {
+			return;
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			Log.logger.severe("Error closing snapshot [" + e.getMessage() + "]");
+		}
+	}
+
+	//Reads the classes an older backup was written with as the stand-ins below, which have the same fields. The
+	//MessageQueue was serialized whole, along with a comparator holding a reference back to it.
+	private static class LegacyInputStream extends ObjectInputStream {
+
+		LegacyInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass desc = super.readClassDescriptor();
+			if (desc.getName().equals("com.jpm.queue.MessageQueue")) {
+				return ObjectStreamClass.lookup(LegacyQueue.class);
+			}
+			if (desc.getName().equals("com.jpm.queue.MessageComparator") || desc.getName().equals("com.jpm.queue.MessageComparator2")) {
+				return ObjectStreamClass.lookup(LegacyComparator.class);
+			}
+			return desc;
+		}
+	}
+
+	private static class LegacyQueue extends ArrayList<Message> {
+		private static final long serialVersionUID = 681702890102712268L;
+		private Set<Long> processedGroupID;
+		private long lastGroupID;
+		private boolean reorder;
+		private Object comparator;
+		private boolean shutdown;
+		private Set<Long> cancelledGroups;
+		private Set<Long> completedGroups;
+	}
+
+	private static class LegacyComparator implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private Object queue;
+	}
+}
@@ -0,0 +1,365 @@
+package com.jpm.queue;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Keeps count of the gateway resources in use. Each free resource is a semaphore permit so taking and returning one
+//never needs the Scheduler monitor, and the limit can be changed while messages are in flight.
+//Once a permit is held the dispatcher is given a numbered slot, standing for one downstream connection or session.
+//With affinity on a group goes back to a slot that last served it if one is free, so the downstream keeps whatever
+//it has cached for the group. If they are all busy the group spills over to the free slot used least recently, after
+//waiting up to affinityWait ms for one of its own, so a free resource is never left idle for long.
+//Slots are given out in the order the dispatchers took their messages from the queue, each takes a ticket then and
+//waits its turn in assign(). A dispatcher waiting for its group's slot holds back the ones behind it.
+public class ResourceManager {
+
+	private final Permits permits;
+	private volatile int resources = 0;
+	//Per slot: whether it is in use, whether it has served a group and which. Guarded by the ResourceManager monitor.
+	private boolean[] slotBusy = new boolean[0];
+	private boolean[] slotServed = new boolean[0];
+	private long[] slotGroup = new long[0];
+	//Free slots within the limit, least recently freed at the head, linked through the slot numbers. -1 ends the list.
+	private int[] freePrev = new int[0];
+	private int[] freeNext = new int[0];
+	private boolean[] slotListed = new boolean[0];
+	private int freeHead = -1;
+	private int freeTail = -1;
+	//The slots that last served each group form a ring, free ones at the front most recently freed first. The map
+	//holds the front slot of each group that has one, zero cannot be a key so has its own field.
+	private int[] groupPrev = new int[0];
+	private int[] groupNext = new int[0];
+	private final LongLongMap groupSlots = new LongLongMap();
+	private int zeroGroupSlot = -1;
+	private final AtomicLong tickets = new AtomicLong();
+	private long turn = 0;
+	//Tickets given up by a dispatcher interrupted before its turn, passed over when it comes
+	private final LongHashSet skipped = new LongHashSet();
+	private boolean affinity = true;
+	private long affinityWait = 0;
+	//Slot numbers seen by the gateway are first + slot * stride so they are unique across shards
+	private int firstSlot = 0;
+	private int slotStride = 1;
+	//Dispatches of a group that had served on a slot before, and those that were sent back to it
+	private volatile long affinityHits = 0;
+	private volatile long affinityMisses = 0;
+
+	public ResourceManager(int resources, boolean fair) {
+		permits = new Permits(fair);
+		setResources(resources);
+	}
+
+	//Block until a resource is free and mark it as used
+	public void acquire() throws InterruptedException {
+		permits.acquire();
+	}
+
+	public boolean tryAcquire() {
+		return permits.tryAcquire();
+	}
+
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		return permits.tryAcquire(timeout, unit);
+	}
+
+	//Return a resource once the gateway has finished with its message
+	public void release() {
+		permits.release();
+	}
+
+	//Return a resource and its slot, from assign()
+	public void release(int slot) {
+		if (slot >= 0) {
+			synchronized (this) {
+				slotBusy[slot] = false;
+				//A slot past a lowered limit is left out until the limit is raised again
+				if (slot < resources) {
+					link(slot);
+				}
+				if (slotServed[slot]) {
+					moveInGroup(slot, true);
+				}
+				//Wake a dispatcher waiting for its group's slot
+				if (affinityWait > 0) {
+					notifyAll();
+				}
+			}
+		}
+		permits.release();
+	}
+
+	//Place in the order slots are given out, taken while the message is taken from the queue. Every ticket must be
+	//passed to assign() or the dispatchers behind it wait for ever.
+	public long ticket() {
+		return tickets.getAndIncrement();
+	}
+
+	//Picks the slot for a group, holding one of the permits, once the tickets before this one have had theirs.
+	//A slot that last served the group if one is free, or becomes free within affinityWait ms, otherwise the free
+	//slot used least recently. The ticket is used up even if this is interrupted, the permit is still the caller's.
+	public synchronized int assign(long groupID, long ticket) throws InterruptedException {
+		while (turn != ticket) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				if (turn == ticket) {
+					next();
+				} else {
+					skipped.add(ticket);
+				}
+				throw e;
+			}
+		}
+		try {
+			return pick(groupID);
+		} finally {
+			next();
+		}
+	}
+
+	//Called holding the monitor
+	private void next() {
+		turn++;
+		while (skipped.remove(turn)) {
+			turn++;
+		}
+		notifyAll();
+	}
+
+	private int pick(long groupID) throws InterruptedException {
+		if (!affinity) {
+			return take(leastRecentlyUsed());
+		}
+		if (slotOf(groupID) >= 0) {
+			//Nobody else is given a slot while we wait, so the group keeps its slots
+			long deadline = System.currentTimeMillis() + affinityWait;
+			for (long now = System.currentTimeMillis(); slotBusy[slotOf(groupID)] && now < deadline; now = System.currentTimeMillis()) {
+				wait(deadline - now);
+			}
+			int slot = slotOf(groupID);
+			if (slotListed[slot]) {
+				affinityHits++;
+				unlink(slot);
+				moveInGroup(slot, false);
+				return take(slot);
+			}
+			affinityMisses++;
+		}
+		int slot = take(leastRecentlyUsed());
+		if (slotServed[slot]) {
+			leaveGroup(slot);
+		}
+		slotGroup[slot] = groupID;
+		slotServed[slot] = true;
+		joinGroup(slot, false);
+		return slot;
+	}
+
+	private int slotOf(long groupID) {
+		return groupID == 0 ? zeroGroupSlot : (int) groupSlots.get(groupID, -1);
+	}
+
+	private void setSlotOf(long groupID, int slot) {
+		if (groupID == 0) {
+			zeroGroupSlot = slot;
+		} else if (slot < 0) {
+			groupSlots.remove(groupID);
+		} else {
+			groupSlots.put(groupID, slot);
+		}
+	}
+
+	//Add a slot to its group's ring, at the front if it is free, the back if it is in use
+	private void joinGroup(int slot, boolean front) {
+		long groupID = slotGroup[slot];
+		int head = slotOf(groupID);
+		if (head < 0) {
+			groupPrev[slot] = slot;
+			groupNext[slot] = slot;
+			setSlotOf(groupID, slot);
+			return;
+		}
+		//The back of a ring is just before its front
+		int tail = groupPrev[head];
+		groupNext[tail] = slot;
+		groupPrev[slot] = tail;
+		groupNext[slot] = head;
+		groupPrev[head] = slot;
+		if (front) {
+			setSlotOf(groupID, slot);
+		}
+	}
+
+	private void leaveGroup(int slot) {
+		long groupID = slotGroup[slot];
+		if (groupNext[slot] == slot) {
+			setSlotOf(groupID, -1);
+			return;
+		}
+		groupNext[groupPrev[slot]] = groupNext[slot];
+		groupPrev[groupNext[slot]] = groupPrev[slot];
+		if (slotOf(groupID) == slot) {
+			setSlotOf(groupID, groupNext[slot]);
+		}
+	}
+
+	private void moveInGroup(int slot, boolean front) {
+		//A ring of one is already at both ends
+		if (groupNext[slot] != slot) {
+			leaveGroup(slot);
+			joinGroup(slot, front);
+		}
+	}
+
+	//Head of the free list. It is only empty when the limit has just been lowered, so the slot is one past the end.
+	private int leastRecentlyUsed() {
+		int slot = freeHead;
+		if (slot < 0) {
+			slot = slotBusy.length;
+			growSlots(slot + 1);
+		} else {
+			unlink(slot);
+		}
+		return slot;
+	}
+
+	private int take(int slot) {
+		slotBusy[slot] = true;
+		return slot;
+	}
+
+	//Add a free slot to the tail of the list as the most recently freed
+	private void link(int slot) {
+		if (slotListed[slot]) {
+			return;
+		}
+		slotListed[slot] = true;
+		freePrev[slot] = freeTail;
+		freeNext[slot] = -1;
+		if (freeTail < 0) {
+			freeHead = slot;
+		} else {
+			freeNext[freeTail] = slot;
+		}
+		freeTail = slot;
+	}
+
+	private void unlink(int slot) {
+		if (!slotListed[slot]) {
+			return;
+		}
+		slotListed[slot] = false;
+		if (freePrev[slot] < 0) {
+			freeHead = freeNext[slot];
+		} else {
+			freeNext[freePrev[slot]] = freeNext[slot];
+		}
+		if (freeNext[slot] < 0) {
+			freeTail = freePrev[slot];
+		} else {
+			freePrev[freeNext[slot]] = freePrev[slot];
+		}
+	}
+
+	private void growSlots(int size) {
+		if (size <= slotBusy.length) {
+			return;
+		}
+		boolean[] busy = new boolean[size];
+		boolean[] served = new boolean[size];
+		long[] group = new long[size];
+		int[] groupBefore = new int[size];
+		int[] groupAfter = new int[size];
+		int[] prev = new int[size];
+		int[] next = new int[size];
+		boolean[] listed = new boolean[size];
+		System.arraycopy(slotBusy, 0, busy, 0, slotBusy.length);
+		System.arraycopy(slotServed, 0, served, 0, slotServed.length);
+		System.arraycopy(slotGroup, 0, group, 0, slotGroup.length);
+		System.arraycopy(groupPrev, 0, groupBefore, 0, groupPrev.length);
+		System.arraycopy(groupNext, 0, groupAfter, 0, groupNext.length);
+		System.arraycopy(freePrev, 0, prev, 0, freePrev.length);
+		System.arraycopy(freeNext, 0, next, 0, freeNext.length);
+		System.arraycopy(slotListed, 0, listed, 0, slotListed.length);
+		slotBusy = busy;
+		slotServed = served;
+		slotGroup = group;
+		groupPrev = groupBefore;
+		groupNext = groupAfter;
+		freePrev = prev;
+		freeNext = next;
+		slotListed = listed;
+	}
+
+	//Slot number as the gateway sees it
+	int slotNumber(int slot) {
+		return slot < 0 ? -1 : firstSlot + slot * slotStride;
+	}
+
+	synchronized void setSlotNumbering(int first, int stride) {
+		firstSlot = first;
+		slotStride = stride;
+	}
+
+	public synchronized void setAffinity(boolean affinity, long wait) {
+		this.affinity = affinity;
+		affinityWait = Math.max(0, wait);
+		//The rings are built again from here on
+		groupSlots.clear();
+		zeroGroupSlot = -1;
+		Arrays.fill(slotServed, false);
+	}
+
+	public long getAffinityHits() {
+		return affinityHits;
+	}
+
+	public long getAffinityMisses() {
+		return affinityMisses;
+	}
+
+	//Lowering the limit below the number in use is allowed, new work waits until enough resources are returned
+	public synchronized void setResources(int resources) {
+		int change = resources - this.resources;
+		if (change > 0) {
+			permits.release(change);
+		} else if (change < 0) {
+			permits.reducePermits(-change);
+		}
+		//Free slots move in or out of the list as the limit moves past them
+		growSlots(resources);
+		for (int i = Math.min(resources, this.resources); i < Math.max(resources, this.resources); i++) {
+			if (i >= resources) {
+				unlink(i);
+			} else if (!slotBusy[i]) {
+				link(i);
+			}
+		}
+		this.resources = resources;
+	}
+
+	public int getResources() {
+		return resources;
+	}
+
+	public int getUsedResources() {
+		return resources - permits.availablePermits();
+	}
+
+	//Semaphore only allows permits to be removed by a subclass
+	private static class Permits extends Semaphore {
+
+		private static final long serialVersionUID = -3372218305961305377L;
+
+		Permits(boolean fair) {
+			super(0, fair);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
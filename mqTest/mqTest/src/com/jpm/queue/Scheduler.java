@@ -1,223 +1,643 @@
-package com.jpm.queue;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.lang.reflect.Method;
-import java.net.URL;
-import java.util.Properties;
-
-public class Scheduler implements Runnable{
-	
-	//Scheduler will be a singleton so we only have one running at a time
-	private static Scheduler s = null;
-	Thread queueThread;
-	//Object to use for waiting and notifying
-	Object waitGuard = new Object();
-	//Configure the number of available resources from a gateway.properties file
-	private static String propertyFile = "scheduler.properties";
-	private String gateWayClass = "";
-	private String comparatorClass = null;
-	private int resources = 0;
-	private Integer usedResources = 0;
-	//First thing we need to define is a sorted list to hold the items that are queued
-	private MessageQueue queue = null;
-	//We need to store a reference to the previous groupID's that have been processed
-	private String processGroupOrder = "";
-	
-	
-	//Block external object creation
-	private Scheduler() {
-		Log.setupLogging();
-		if (loadProperties()) {
-			Log.logger.info("Scheduler configured to manage ["+resources+"] resources");
-		} else {
-			//Error?
-			Log.logger.info("Could not load properties file...exiting");
-			System.exit(1);
-		}
-		Log.logger.info("Loading queue");
-		queue = MessageQueue.getQueue();
-		if (queue == null) {
-			System.exit(1);
-		}
-		if (null != comparatorClass) {
-			//Change the comparator class in the queue
-			queue.setComparator(comparatorClass);
-		}
-		//Register a controlled shutdown method to backup all data
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-		    public void run() { 
-		    	Scheduler.shutdown();
-		    	queue.shutdown();
-		    }
-		 });
-		
-		//Start the queue processing engine on its own thread
-		queueThread = new Thread(this);
-		queueThread.setName("QueueProcessor");
-		queueThread.start();
-	}
-	
-	protected static void shutdown() {
-		//Kill the queue thread
-		Log.logger.info("Shutdown the queue scheduler");
-		if (null != s) {
-			s.queueThread.interrupt();
-		}
-	}
-
-	//Singleton creator
-	public static Scheduler getInstance() {
-		if (s == null) {
-			synchronized(Scheduler.class){
-				if (s == null)
-					s = new Scheduler();
-			}
-		}
-		return s;
-	}
-
-	private boolean loadProperties() {
-		try {
-			//Locate the ini file by getting its full path
-			URL url = getClass().getClassLoader().getResource(propertyFile);
-			if (null != url) {
-				String filePath = url.getPath();
-				if (filePath.toUpperCase().startsWith("FILE:/")) {
-					//Strip off the actual file path
-					filePath = filePath.substring(6);
-				}
-				File file = new File(filePath);
-				//Check we can find the file
-				if (file.isFile()) {
-					InputStream is = new FileInputStream(file);
-					Properties properties = new Properties();
-					properties.load(is);
-					if (properties.containsKey("resources")) {
-						//This will exception if value is not an int
-						resources = Integer.valueOf(properties.getProperty("resources"));
-						gateWayClass=properties.getProperty("gateway.class");
-						comparatorClass=properties.getProperty("comparator.class");
-						String queueStore = properties.getProperty("backup.file");
-						if (null != queueStore) {
-							//Set it and restore any backup that might be there
-							MessageQueue.setBackupFile(queueStore);
-						}
-					}
-					is.close();
-					Log.logger.info("Loaded properties file[" + propertyFile + "]");
-					return true;
-				} else {
-					Log.logger.info("Error finding properties file[" + propertyFile + "] in path["+file.getParent()+"]");
-				}
-			} else {
-				Log.logger.info("Error finding properties file[" + propertyFile + "]");
-			}
-		} catch (Exception e) {
-			Log.logger.info("Error loading properties file[" + propertyFile + "] Error[" + e.getMessage() + "]");
-			e.printStackTrace();
-		}
-		return false;
-	}
-	
-	
-	//Method to add a new Message to the queue
-	public boolean addToQueue(Message msg) {
-		Log.logger.info("Adding a new message for processing.");
-		boolean ret = queue.add(msg);
-		if (ret) {
-			//Wake up queue processing thread
-			synchronized (s) {
-				s.notify();
-			}
-		}
-		return ret;
-	}
-
-	public boolean cancelMessageGroup(long groupID) {
-		return queue.cancelMessageGroup(groupID);
-	}
-	
-	@Override
-	public void run() {
-		//This loop needs to check the queue and available resources and add when available
-		synchronized (s) {
-				//Loop indefinitely
-				for (;;) {
-					try {
-					if (getUsedResources() < resources && !queue.isEmpty()) {
-						//We can process one or more item
-						//Get the first item in the set and remove it from the set
-						Message msg = null;
-						//Queue type does not require synchronisation
-						//synchronized (queue) {
-							msg = queue.pollFirst();
-						//}
-						processGroupOrder +="("+msg.getGroupID()+")";
-						Log.logger.info("Order ["+processGroupOrder+"]");
-						//Mark a resource as used
-						decUsedResources();
-						Log.logger.info("Processing message with data["+msg.getData()+"] groupID["+msg.getGroupID()+"] added on["+msg.getTime()+"]");
-						sendToGateway(msg);
-					} else {
-						Log.logger.info("Idle waiting for notify()");
-						s.wait();
-					}
-					} catch (InterruptedException ex) {
-						//Should add a check for shutdown each loop to cleanly exit
-						Log.logger.info("Interrupted");
-					}
-				}
-		}		
-	}
-	
-	//This call uses reflection to invoke the Gateway send method as it is referenced by a property
-	public void sendToGateway(Message msg) {
-        try {
-            //Get the class
-            Class<?> c = Class.forName(gateWayClass);
-            Object[] args = new Object[] { msg };
-            Method method = c.getMethod("send", Message.class);
-            method.invoke(null, args);
-        } catch (Exception e) {
-            Log.logger.severe("Cannot invoke Gateway.send message using gateway class ["+gateWayClass+"]");
-            System.exit(1);
-        }
-	}	
-
-
-	public int getUsedResources() {
-		synchronized (usedResources) {
-			Log.logger.info("Used "+usedResources);
-			return usedResources;
-		}
-	}
-
-	public void decUsedResources() {
-		synchronized (usedResources) {
-			Log.logger.info("Used "+usedResources);
-			usedResources++;
-		}
-	}
-
-	public void incUsedResources() {
-		synchronized (usedResources) {
-			Log.logger.info("Used "+usedResources);
-			usedResources--;
-		}
-	}
-		
-	public static void main(String[] args) {
-		Log.setupLogging();
-		Log.logger.info("Starting Scheduler");
-		Scheduler.getInstance();
-		Log.logger.info("Scheduler started and waiting for work");
-	}
-
-	public void setResources(int resources) {
-		Log.logger.info("Setting external resourses to "+resources);
-		this.resources = resources;
-	}
-	
+package com.jpm.queue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+//Entry point for adding and cancelling messages. Groups are hashed across one or more shards, each with its own
+//queue, dispatchers and share of the resources, so groups in different shards never contend for the same monitor.
+public class Scheduler {
+	
+	//Scheduler will be a singleton so we only have one running at a time
+	private static Scheduler s = null;
+	//Object to use for waiting and notifying
+	Object waitGuard = new Object();
+	//Configure the number of available resources from a gateway.properties file
+	private static String propertyFile = "scheduler.properties";
+	private String gateWayClass = "";
+	private Gateway gateway = null;
+	//Set when messages of one group are sent to the gateway in batches of up to batchSize
+	private BatchGateway batchGateway = null;
+	private int batchSize = 1;
+	//How long a dispatcher waits for more of the group to fill a batch
+	private long batchLinger = 0;
+	//Times a message may be sent again after the gateway returns Outcome.RETRY before it is treated as failed
+	private int retryMax = 3;
+	//How long the gateway may hold a message before its resource is taken back, 0 to wait forever
+	private long leaseTimeout = 0;
+	private long leaseTick = 100;
+	//An expired message is sent again, counting as a retry, or dropped as failed
+	private boolean leaseRequeue = true;
+	private Properties properties = new Properties();
+	private String comparatorClass = null;
+	private String engineClass = null;
+	//Longest a message waits before its group is moved ahead of the others, 0 for strict group affinity
+	private long maxWait = 0;
+	private int resources = 0;
+	//Number of threads taking messages off the queue and handing them to the gateway
+	private int dispatchers = 1;
+	private boolean fairResources = false;
+	//Send a group back to the resource that last served it, waiting up to affinityWait ms for it before using another
+	private boolean affinity = true;
+	private long affinityWait = 0;
+	//Let each shard move its resources between its share of resourcesMin and resourcesMax as the gateway latency changes
+	private boolean adaptive = false;
+	private int resourcesMin = 1;
+	private int resourcesMax = 0;
+	private long adaptiveWindow = 1000;
+	private double adaptiveBackoff = 0.9;
+	//Number of independent queues the groups are spread over
+	private int shardCount = 1;
+	//Let a shard with messages waiting use a free resource of a shard with none, after waiting borrowWait ms for its own
+	private boolean borrow = true;
+	private long borrowWait = 5;
+	//Journal settings, each shard journals to its own directory under journalDir
+	private File journalDir = null;
+	private Journal.Sync journalSync = Journal.Sync.INTERVAL;
+	private long journalInterval = 10;
+	private int journalSegmentSize = 16777216;
+	private long journalCheckpoint = 60000;
+	//Spill store settings, the backlog beyond the heap limit goes to segment files under spillDir
+	private File spillDir = null;
+	private long spillMaxMessages = 0;
+	private long spillMaxBytes = 0;
+	private int spillKeep = 16;
+	private int spillSegmentSize = 16777216;
+	//Endpoint for producers in other processes, off unless ingestPort is set
+	private int ingestPort = 0;
+	private String ingestBind = "127.0.0.1";
+	private int ingestMaxFrame = 1048576;
+	private IngestServer ingest = null;
+	//Time as the shards see it, only a virtual clock when simulated
+	private Clock clock = Clock.SYSTEM;
+	//Capacity of the queue, split over the shards except the per group limit, 0 for no limit
+	private int queueMaxMessages = 0;
+	private int queueMaxGroupMessages = 0;
+	private long queueMaxBytes = 0;
+	private double queueLowWatermark = 0.9;
+	//What an add does when the queue is full, BLOCK waiting up to offerTimeout ms for room
+	private Overflow overflow = Overflow.BLOCK;
+	private long offerTimeout = 1000;
+	//First thing we need to define is the shards holding the items that are queued
+	private Shard[] shards = null;
+	
+	
+	//Block external object creation
+	private Scheduler() {
+		Log.setupLogging();
+		if (loadProperties()) {
+			Log.logger.info("Scheduler configured to manage ["+resources+"] resources");
+		} else {
+			//Error?
+			Log.logger.info("Could not load properties file...exiting");
+			System.exit(1);
+		}
+		gateway = loadGateway();
+		if (gateway == null) {
+			System.exit(1);
+		}
+		openShards(false);
+		//Register a controlled shutdown method to backup all data
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+		    public void run() { 
+		    	Scheduler.shutdown();
+		    	for (Shard shard : shards) {
+		    		shard.queue.shutdown();
+		    	}
+		    }
+		 });
+		
+		//Start the queue processing engine on its own threads
+		for (int i = 0; i < shardCount; i++) {
+			shards[i].start(dispatchers, shardCount > 1 ? "QueueProcessor-" + i : "QueueProcessor");
+		}
+		if (ingestPort > 0) {
+			try {
+				ingest = new IngestServer(this, new InetSocketAddress(ingestBind, ingestPort), ingestMaxFrame);
+				ingest.start();
+				Log.logger.info("Accepting messages on ["+ingestBind+":"+ingest.getPort()+"]");
+			} catch (IOException e) {
+				Log.logger.severe("Cannot listen for messages on ["+ingestBind+":"+ingestPort+"] Error["+e.getMessage()+"]");
+			}
+		}
+	}
+	
+	//For the simulator: the real shards on the given clock with none of their threads started. The caller steps them
+	//with dispatch(), drainCompletions() and expireLeases(). Nothing is journalled, listened on until listen() or
+	//registered with JMX, and a batch never lingers nor a group wait for its resource, as neither can on a thread
+	//nobody else wakes.
+	private Scheduler(Properties properties, Gateway gateway, Clock clock) {
+		this.properties.putAll(properties);
+		configure();
+		journalDir = null;
+		ingestPort = 0;
+		batchLinger = 0;
+		affinityWait = 0;
+		this.gateway = gateway;
+		this.clock = clock;
+		openShards(true);
+	}
+
+	//Creates the shards, each with its queue, resources and their settings
+	private void openShards(boolean simulated) {
+		if (batchSize > 1) {
+			if (gateway instanceof BatchGateway) {
+				batchGateway = (BatchGateway) gateway;
+				Log.logger.info("Dispatching batches of up to ["+batchSize+"] messages, lingering ["+batchLinger+"] ms");
+			} else {
+				Log.logger.warning("Gateway ["+gateWayClass+"] cannot take batches, dispatching one message at a time");
+				batchSize = 1;
+			}
+		}
+		Log.logger.info("Loading queue");
+		boolean sharded = shardCount > 1;
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			//Unsharded keeps the single queue with the original backup file and journal
+			MessageQueue queue;
+			if (simulated) {
+				//A fresh queue for every simulation, nothing from a real run is restored into it
+				queue = MessageQueue.open(sharded ? shardFile(MessageQueue.getBackupFile(), i) : MessageQueue.getBackupFile(), null);
+			} else if (sharded) {
+				queue = MessageQueue.open(shardFile(MessageQueue.getBackupFile(), i), newJournal(new File(journalDir, "shard-" + i)));
+			} else {
+				MessageQueue.setJournal(newJournal(journalDir));
+				queue = MessageQueue.getQueue();
+			}
+			if (queue == null) {
+				System.exit(1);
+			}
+			if (null != comparatorClass) {
+				//Change the comparator class in the queue
+				queue.setComparator(comparatorClass);
+			}
+			if (null != spillDir) {
+				queue.setSpill(newSpill(sharded ? new File(spillDir, "shard-" + i) : spillDir));
+			}
+			if (null != engineClass) {
+				//Change how the queue stores and orders its messages
+				queue.setEngine(engineClass);
+			}
+			queue.setMaxWait(maxWait);
+			//A limit too small to share still leaves each shard room for one
+			queue.setCapacity(queueMaxMessages > 0 ? Math.max(1, share(queueMaxMessages, i)) : 0, queueMaxGroupMessages,
+					queueMaxBytes > 0 ? Math.max(1, queueMaxBytes / shardCount) : 0, queueLowWatermark);
+			queue.setOverflow(overflow, offerTimeout);
+			shards[i] = new Shard(this, i, sharded, queue, share(resources, i), fairResources);
+			shards[i].setAffinity(affinity, affinityWait, shardCount);
+			if (adaptive) {
+				shards[i].setLimiter(Math.max(1, share(resourcesMin, i)), share(resourcesMax, i), adaptiveWindow, adaptiveBackoff);
+			}
+			if (leaseTimeout > 0) {
+				shards[i].setLeases(leaseTimeout, leaseTick, leaseRequeue);
+			}
+			if (!simulated) {
+				shards[i].metrics.register(sharded ? "com.jpm.queue:type=Scheduler,shard=" + i : "com.jpm.queue:type=Scheduler");
+			}
+		}
+		if (adaptive) {
+			Log.logger.info("Adapting resources between ["+resourcesMin+"] and ["+resourcesMax+"] every ["+adaptiveWindow+"] ms");
+		}
+		if (queueMaxMessages > 0 || queueMaxGroupMessages > 0 || queueMaxBytes > 0) {
+			Log.logger.info("Queue limited to ["+queueMaxMessages+"] messages, ["+queueMaxGroupMessages+"] per group and ["+queueMaxBytes+"] bytes, overflow ["+overflow+"]");
+		}
+		if (leaseTimeout > 0) {
+			Log.logger.info("Leasing resources for ["+leaseTimeout+"] ms, expired messages are "+(leaseRequeue ? "requeued" : "dropped"));
+		}
+		if (sharded) {
+			Log.logger.info("Groups split over ["+shardCount+"] shards, borrowing resources between them ["+borrow+"]");
+			if (borrow) {
+				for (Shard shard : shards) {
+					List<Shard> lenders = new ArrayList<Shard>(Arrays.asList(shards));
+					lenders.remove(shard);
+					shard.setLenders(lenders.toArray(new Shard[lenders.size()]), borrowWait);
+				}
+			}
+		}
+	}
+
+	//Replaces the Scheduler with one the simulator steps itself, see Scheduler(Properties, Gateway, Clock)
+	public static Scheduler simulate(Properties properties, Gateway gateway, Clock clock) {
+		synchronized (Scheduler.class) {
+			s = new Scheduler(properties, gateway, clock);
+		}
+		return s;
+	}
+
+	//Simulator only. Takes requests on the ingest endpoint from this machine on a free port, which it returns, until
+	//stopListening(). The caller has to wait for each acknowledgement before stepping the shards.
+	public int listen() throws IOException {
+		ingest = new IngestServer(this, new InetSocketAddress("127.0.0.1", 0), ingestMaxFrame);
+		ingest.start();
+		return ingest.getPort();
+	}
+
+	//Simulator only
+	public void stopListening() {
+		if (null != ingest) {
+			ingest.close();
+			ingest = null;
+		}
+	}
+
+	//Simulator only. Hands out batches until no shard has both a message and a resource, returns how many.
+	public int dispatch() throws InterruptedException {
+		int n = 0;
+		for (boolean more = true; more;) {
+			more = false;
+			//A batch from each shard in turn, as their dispatchers would run side by side
+			for (Shard shard : shards) {
+				if (shard.dispatchNow()) {
+					n++;
+					more = true;
+				}
+			}
+		}
+		return n;
+	}
+
+	//Simulator only. Finishes everything completed so far, returns false if there was nothing.
+	public boolean drainCompletions() {
+		boolean drained = false;
+		for (Shard shard : shards) {
+			drained |= shard.drainNow();
+		}
+		return drained;
+	}
+
+	//Simulator only. Takes back the resources of messages whose lease has run out by the clock's time.
+	public void expireLeases() {
+		long now = clock.currentTimeMillis();
+		for (Shard shard : shards) {
+			shard.expireLeases(now);
+		}
+	}
+
+	protected static void shutdown() {
+		//Kill the queue threads
+		Log.logger.info("Shutdown the queue scheduler");
+		if (null != s) {
+			if (null != s.ingest) {
+				s.ingest.close();
+			}
+			for (Shard shard : s.shards) {
+				shard.interrupt();
+			}
+		}
+	}
+
+	//backup.bin becomes backup-1.bin for shard 1
+	private static String shardFile(String file, int shard) {
+		int dot = file.lastIndexOf('.');
+		if (dot <= Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'))) {
+			return file + "-" + shard;
+		}
+		return file.substring(0, dot) + "-" + shard + file.substring(dot);
+	}
+
+	private Journal newJournal(File dir) {
+		if (null == journalDir) {
+			return null;
+		}
+		Journal journal = new Journal(dir, journalSync, journalInterval, journalSegmentSize);
+		journal.setCheckpointInterval(journalCheckpoint);
+		return journal;
+	}
+
+	private SpillStore newSpill(File dir) {
+		try {
+			return new SpillStore(dir, spillSegmentSize, spillMaxMessages, spillMaxBytes, spillKeep);
+		} catch (IOException e) {
+			Log.logger.severe("Cannot open the spill store in [" + dir + "], the whole backlog stays in memory Error[" + e.getMessage() + "]");
+			return null;
+		}
+	}
+
+	//The resources are split evenly, the first shards taking one more each when they do not divide
+	private int share(int resources, int shard) {
+		return resources / shardCount + (shard < resources % shardCount ? 1 : 0);
+	}
+
+	private Shard shardFor(long groupID) {
+		if (shards.length == 1) {
+			return shards[0];
+		}
+		return shards[(LongHashSet.hash(groupID) & 0x7fffffff) % shards.length];
+	}
+
+	//Singleton creator
+	public static Scheduler getInstance() {
+		if (s == null) {
+			synchronized(Scheduler.class){
+				if (s == null)
+					s = new Scheduler();
+			}
+		}
+		return s;
+	}
+
+	private boolean loadProperties() {
+		try {
+			//Locate the ini file by getting its full path
+			URL url = getClass().getClassLoader().getResource(propertyFile);
+			if (null != url) {
+				String filePath = url.getPath();
+				if (filePath.toUpperCase().startsWith("FILE:/")) {
+					//Strip off the actual file path
+					filePath = filePath.substring(6);
+				}
+				File file = new File(filePath);
+				//Check we can find the file
+				if (file.isFile()) {
+					InputStream is = new FileInputStream(file);
+					properties.load(is);
+					if (properties.containsKey("resources")) {
+						configure();
+					}
+					is.close();
+					Log.logger.info("Loaded properties file[" + propertyFile + "]");
+					return true;
+				} else {
+					Log.logger.info("Error finding properties file[" + propertyFile + "] in path["+file.getParent()+"]");
+				}
+			} else {
+				Log.logger.info("Error finding properties file[" + propertyFile + "]");
+			}
+		} catch (Exception e) {
+			Log.logger.info("Error loading properties file[" + propertyFile + "] Error[" + e.getMessage() + "]");
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	//Reads the settings from properties
+	private void configure() {
+		//This will exception if value is not an int
+		resources = Integer.valueOf(properties.getProperty("resources"));
+		gateWayClass=properties.getProperty("gateway.class");
+		comparatorClass=properties.getProperty("comparator.class");
+		engineClass=properties.getProperty("engine.class");
+		maxWait = Long.valueOf(properties.getProperty("ordering.max.wait.ms", "0"));
+		if (properties.containsKey("dispatchers")) {
+			dispatchers = Math.max(1, Integer.valueOf(properties.getProperty("dispatchers")));
+		}
+		shardCount = Math.max(1, Integer.valueOf(properties.getProperty("shards", "1")));
+		borrow = Boolean.valueOf(properties.getProperty("shards.borrow", "true"));
+		borrowWait = Long.valueOf(properties.getProperty("shards.borrow.wait.ms", "5"));
+		fairResources = Boolean.valueOf(properties.getProperty("resources.fair", "false"));
+		affinity = Boolean.valueOf(properties.getProperty("resources.affinity", "true"));
+		affinityWait = Long.valueOf(properties.getProperty("resources.affinity.wait.ms", "0"));
+		adaptive = Boolean.valueOf(properties.getProperty("resources.adaptive", "false"));
+		resourcesMin = Integer.valueOf(properties.getProperty("resources.min", "1"));
+		resourcesMax = Math.max(resources, Integer.valueOf(properties.getProperty("resources.max", "0")));
+		adaptiveWindow = Long.valueOf(properties.getProperty("resources.adaptive.window.ms", "1000"));
+		adaptiveBackoff = Double.valueOf(properties.getProperty("resources.adaptive.backoff", "0.9"));
+		batchSize = Math.max(1, Integer.valueOf(properties.getProperty("dispatch.batch.size", "1")));
+		batchLinger = Long.valueOf(properties.getProperty("dispatch.batch.linger.ms", "0"));
+		retryMax = Integer.valueOf(properties.getProperty("dispatch.retry.max", "3"));
+		leaseTimeout = Long.valueOf(properties.getProperty("dispatch.lease.ms", "0"));
+		leaseTick = Math.max(1, Long.valueOf(properties.getProperty("dispatch.lease.tick.ms", "100")));
+		leaseRequeue = !properties.getProperty("dispatch.lease.expired", "requeue").equalsIgnoreCase("drop");
+		Log.logger.setLevel(Level.parse(properties.getProperty("log.level", "INFO")));
+		if (Boolean.valueOf(properties.getProperty("log.async", "false"))) {
+			Log.setAsync(Integer.valueOf(properties.getProperty("log.async.buffer", "8192")));
+		}
+		MessageQueue.setDeduplication(Long.valueOf(properties.getProperty("dedup.window.ms", "0")),
+				Integer.valueOf(properties.getProperty("dedup.max.keys", "1000000")));
+		MessageQueue.setHistoryRetention(Integer.valueOf(properties.getProperty("history.max.entries", "0")),
+				Long.valueOf(properties.getProperty("history.ttl.ms", "0")));
+		String spill = properties.getProperty("spill.dir");
+		if (null != spill && spill.length() > 0) {
+			spillDir = new File(spill);
+			spillMaxMessages = Long.valueOf(properties.getProperty("spill.max.messages", "0"));
+			spillMaxBytes = Long.valueOf(properties.getProperty("spill.max.bytes", "0"));
+			spillKeep = Integer.valueOf(properties.getProperty("spill.keep", "16"));
+			spillSegmentSize = Integer.valueOf(properties.getProperty("spill.segment.size", "16777216"));
+		}
+		ingestPort = Integer.valueOf(properties.getProperty("ingest.port", "0"));
+		ingestBind = properties.getProperty("ingest.bind", "127.0.0.1");
+		ingestMaxFrame = Integer.valueOf(properties.getProperty("ingest.max.frame", "1048576"));
+		queueMaxMessages = Integer.valueOf(properties.getProperty("queue.max.messages", "0"));
+		queueMaxGroupMessages = Integer.valueOf(properties.getProperty("queue.max.group.messages", "0"));
+		queueMaxBytes = Long.valueOf(properties.getProperty("queue.max.bytes", "0"));
+		queueLowWatermark = Double.valueOf(properties.getProperty("queue.low.watermark", "0.9"));
+		overflow = Overflow.valueOf(properties.getProperty("queue.overflow", "block").toUpperCase());
+		offerTimeout = Long.valueOf(properties.getProperty("queue.offer.timeout.ms", "1000"));
+		String queueStore = properties.getProperty("backup.file");
+		if (null != queueStore) {
+			//Set it and restore any backup that might be there
+			MessageQueue.setBackupFile(queueStore);
+		}
+		String journalDir = properties.getProperty("journal.dir");
+		if (null != journalDir && journalDir.length() > 0) {
+			this.journalDir = new File(journalDir);
+			journalSync = Journal.Sync.valueOf(properties.getProperty("journal.sync", "interval").toUpperCase());
+			journalInterval = Long.valueOf(properties.getProperty("journal.sync.interval.ms", "10"));
+			journalSegmentSize = Integer.valueOf(properties.getProperty("journal.segment.size", "16777216"));
+			journalCheckpoint = Long.valueOf(properties.getProperty("journal.checkpoint.ms", "60000"));
+		}
+	}
+
+	//Method to add a new Message to the queue, a full queue is handled as queue.overflow says
+	public boolean addToQueue(Message msg) {
+		Log.logger.fine("Adding a new message for processing.");
+		//The queue wakes up a waiting dispatcher itself
+		return shardFor(msg.getGroupID()).queue.add(msg);
+	}
+
+	//As addToQueue() choosing what happens if the queue is full, BLOCK waiting up to timeout ms for room
+	public AddResult offerToQueue(Message msg, Overflow overflow, long timeout) throws InterruptedException {
+		return shardFor(msg.getGroupID()).queue.offer(msg, overflow, timeout);
+	}
+
+	//Add a burst of messages in one go, the result for each message is in the same order
+	public List<AddResult> addAllToQueue(Collection<Message> msgs) {
+		return addAllToQueue(msgs, overflow, offerTimeout);
+	}
+
+	public List<AddResult> addAllToQueue(Collection<Message> msgs, Overflow overflow, long timeout) {
+		if (shards.length == 1) {
+			return shards[0].queue.addAll(msgs, overflow, timeout);
+		}
+		//Each shard takes its part of the burst in one go, keeping where each message came from
+		List<List<Message>> parts = new ArrayList<List<Message>>(shards.length);
+		List<List<Integer>> positions = new ArrayList<List<Integer>>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			parts.add(new ArrayList<Message>());
+			positions.add(new ArrayList<Integer>());
+		}
+		int n = 0;
+		for (Message msg : msgs) {
+			int i = shardFor(msg.getGroupID()).index;
+			parts.get(i).add(msg);
+			positions.get(i).add(n++);
+		}
+		AddResult[] results = new AddResult[n];
+		for (int i = 0; i < shards.length; i++) {
+			if (!parts.get(i).isEmpty()) {
+				List<AddResult> r = shards[i].queue.addAll(parts.get(i), overflow, timeout);
+				for (int j = 0; j < r.size(); j++) {
+					results[positions.get(i).get(j)] = r.get(j);
+				}
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	//Returns the number of queued messages dropped, or -1 if the group was already cancelled
+	public int cancelMessageGroup(long groupID) {
+		return shardFor(groupID).queue.cancelMessageGroup(groupID);
+	}
+
+	//Returns false if the group had already had its last message
+	public boolean terminateMessageGroup(long groupID) {
+		return shardFor(groupID).queue.terminateMessageGroup(groupID);
+	}
+
+	public void clearQueue() {
+		for (Shard shard : shards) {
+			shard.queue.clear();
+		}
+	}
+
+	public void clearCancelledGroupHistory() {
+		for (Shard shard : shards) {
+			shard.queue.clearCancelledGroupHistory();
+		}
+	}
+
+	public void clearProcessedGroupHistory() {
+		for (Shard shard : shards) {
+			shard.queue.clearProcessedGroupHistory();
+		}
+	}
+
+	public void clearCompletedGroupHistory() {
+		for (Shard shard : shards) {
+			shard.queue.clearCompletedGroupHistory();
+		}
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	long getBatchLinger() {
+		return batchLinger;
+	}
+
+	int getRetryMax() {
+		return retryMax;
+	}
+
+	Clock getClock() {
+		return clock;
+	}
+
+	//Resolve the gateway once, either an implementation of Gateway or a class with a static send(Message) method
+	private Gateway loadGateway() {
+		try {
+			Class<?> c = Class.forName(gateWayClass);
+			Gateway g;
+			if (Gateway.class.isAssignableFrom(c)) {
+				g = (Gateway) c.getDeclaredConstructor().newInstance();
+			} else {
+				g = new StaticGateway(c);
+			}
+			g.init(properties);
+			Log.logger.info("Loaded gateway class ["+gateWayClass+"]");
+			return g;
+		} catch (Exception e) {
+			Log.logger.severe("Cannot load gateway class ["+gateWayClass+"] Error["+e+"]");
+		}
+		return null;
+	}
+	
+	//A failed send only affects this message, its resource is handed back for the next one
+	public void sendToGateway(Message msg) {
+		try {
+			gateway.send(msg);
+		} catch (Exception e) {
+			Log.logger.severe("Gateway failed to send message with data["+msg.getData()+"] groupID["+msg.getGroupID()+"] Error["+e+"]");
+			completed(msg, Outcome.FAILURE);
+		}
+	}
+	
+	//Every message in the batch shares the resource, which goes back once they have all finished
+	public void sendToGateway(List<Message> batch) {
+		DispatchBatch b = new DispatchBatch(batch.size());
+		for (Message msg : batch) {
+			msg.batch = b;
+		}
+		try {
+			batchGateway.sendBatch(batch);
+		} catch (Exception e) {
+			Log.logger.severe("Gateway failed to send a batch of ["+batch.size()+"] messages for groupID["+batch.get(0).getGroupID()+"] Error["+e+"]");
+			for (Message msg : batch) {
+				completed(msg, Outcome.FAILURE);
+			}
+		}
+	}
+	
+	//Called once the gateway has finished with a message
+	public void completed(Message msg) {
+		completed(msg, Outcome.SUCCESS);
+	}
+
+	//Completes the latest dispatch of the message
+	public void completed(Message msg, Outcome outcome) {
+		completed(msg, msg.getAttempt(), outcome);
+	}
+
+	//Never blocks, the outcome is posted to the shard's completion thread. Only the first call for a dispatch counts
+	//and only while it is the latest, see Message.completed(int, Outcome).
+	public void completed(Message msg, int attempt, Outcome outcome) {
+		if (!msg.complete(attempt, outcome)) {
+			Log.logger.warning("Ignoring a second or late completion ["+outcome+"] of attempt ["+attempt+"] for message with data["+msg.getData()+"] groupID["+msg.getGroupID()+"]");
+			return;
+		}
+		shardFor(msg.getGroupID()).completions.post(msg);
+	}
+	
+	//Metrics of the first shard, which is the only one unless sharded
+	public SchedulerMetrics getMetrics() {
+		return shards[0].metrics;
+	}
+
+	public SchedulerMetrics getMetrics(int shard) {
+		return shards[shard].metrics;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public ResourceManager getResourceManager() {
+		return shards[0].resourceManager;
+	}
+		
+	public static void main(String[] args) {
+		Log.setupLogging();
+		Log.logger.info("Starting Scheduler");
+		Scheduler.getInstance();
+		Log.logger.info("Scheduler started and waiting for work");
+	}
+
+	public void setResources(int resources) {
+		Log.logger.info("Setting external resourses to "+resources);
+		this.resources = resources;
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].setResources(share(resources, i));
+		}
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+package com.jpm.queue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+//Runtime figures for the queue and dispatchers, registered as an MBean by the Scheduler.
+//Queue latency is from Message.getTime() to dispatch and service latency is from dispatch to completed().
+public class SchedulerMetrics implements SchedulerMetricsMBean {
+
+	private MessageQueue queue = null;
+	private ResourceManager resourceManager = null;
+	private AdaptiveLimiter limiter = null;
+	private final StripedCounter enqueued = new StripedCounter();
+	private final StripedCounter dispatched = new StripedCounter();
+	private final StripedCounter completed = new StripedCounter();
+	private final StripedCounter failed = new StripedCounter();
+	private final StripedCounter rejectedCancelled = new StripedCounter();
+	private final StripedCounter rejectedCompleted = new StripedCounter();
+	private final StripedCounter rejectedFull = new StripedCounter();
+	private final StripedCounter droppedOldest = new StripedCounter();
+	private final StripedCounter duplicates = new StripedCounter();
+	private final StripedCounter cancelled = new StripedCounter();
+	private final StripedCounter sorts = new StripedCounter();
+	private final StripedCounter groupSwitches = new StripedCounter();
+	private final StripedCounter borrowed = new StripedCounter();
+	private final StripedCounter retried = new StripedCounter();
+	private final StripedCounter expired = new StripedCounter();
+	private final StripedCounter aged = new StripedCounter();
+	private final LatencyHistogram queueLatency = new LatencyHistogram();
+	private final LatencyHistogram serviceLatency = new LatencyHistogram();
+
+	void setQueue(MessageQueue queue) {
+		this.queue = queue;
+	}
+
+	void setResourceManager(ResourceManager resourceManager) {
+		this.resourceManager = resourceManager;
+	}
+
+	void setLimiter(AdaptiveLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public void register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+			Log.logger.info("Registered metrics MBean [" + name + "]");
+		} catch (Exception e) {
+			Log.logger.warning("Cannot register metrics MBean [" + name + "] Error[" + e + "]");
+		}
+	}
+
+	void enqueued() {
+		enqueued.increment();
+	}
+
+	void rejectedCancelled() {
+		rejectedCancelled.increment();
+	}
+
+	void rejectedCompleted() {
+		rejectedCompleted.increment();
+	}
+
+	void rejectedFull() {
+		rejectedFull.increment();
+	}
+
+	void duplicate() {
+		duplicates.increment();
+	}
+
+	//Queued messages dropped to make room for a newer one of their group
+	void droppedOldest() {
+		droppedOldest.increment();
+	}
+
+	//Queued messages dropped by cancelling their group
+	void cancelled(int messages) {
+		cancelled.add(messages);
+	}
+
+	void sorted() {
+		sorts.increment();
+	}
+
+	void groupSwitched() {
+		groupSwitches.increment();
+	}
+
+	//now is the time on the shard's clock
+	void dispatched(Message msg, long now) {
+		dispatched.increment();
+		//Timed on the monotonic clock from when the queue accepted it so a wall clock step cannot skew the figure.
+		//Messages restored after a restart only have their wall clock time.
+		long enqueued = msg.getEnqueueNanos();
+		queueLatency.record(0 != enqueued ? (System.nanoTime() - enqueued) / 1000000 : now - msg.getTime());
+	}
+
+	//The dispatch time was taken from the same clock as now
+	void completed(Message msg, long now) {
+		completed.increment();
+		serviceLatency.record(now - msg.getDispatchTime());
+	}
+
+	void failed() {
+		failed.increment();
+	}
+
+	//A group was moved ahead because its oldest message had waited too long
+	void aged() {
+		aged.increment();
+	}
+
+	void retried() {
+		retried.increment();
+	}
+
+	//The gateway held a message past its lease so the resource was taken back
+	void leaseExpired() {
+		expired.increment();
+	}
+
+	//A dispatcher took a resource lent by another shard
+	void borrowed() {
+		borrowed.increment();
+	}
+
+	public int getQueueDepth() {
+		return null == queue ? 0 : queue.size();
+	}
+
+	public int getQueuedGroups() {
+		return null == queue ? 0 : queue.groupCount();
+	}
+
+	public long getQueueBytes() {
+		return null == queue ? 0 : queue.bytes();
+	}
+
+	public int getGroupBacklog(long groupID) {
+		return null == queue ? 0 : queue.groupSize(groupID);
+	}
+
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	public long getDispatched() {
+		return dispatched.sum();
+	}
+
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getRejectedCancelled() {
+		return rejectedCancelled.sum();
+	}
+
+	public long getRejectedCompleted() {
+		return rejectedCompleted.sum();
+	}
+
+	public long getRejectedFull() {
+		return rejectedFull.sum();
+	}
+
+	public long getDroppedOldest() {
+		return droppedOldest.sum();
+	}
+
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	public int getIdempotencyKeys() {
+		return null == queue ? 0 : queue.getIdempotencyKeys();
+	}
+
+	public long getCancelledMessages() {
+		return cancelled.sum();
+	}
+
+	public long getSorts() {
+		return sorts.sum();
+	}
+
+	public long getGroupSwitches() {
+		return groupSwitches.sum();
+	}
+
+	public long getRetried() {
+		return retried.sum();
+	}
+
+	public long getExpiredLeases() {
+		return expired.sum();
+	}
+
+	public long getAgedGroupSwitches() {
+		return aged.sum();
+	}
+
+	public long getSpilledMessages() {
+		SpillStore spill = null == queue ? null : queue.getSpill();
+		return null == spill ? 0 : spill.getSpilled();
+	}
+
+	public long getBorrowedResources() {
+		return borrowed.sum();
+	}
+
+	public int getResources() {
+		return null == resourceManager ? 0 : resourceManager.getResources();
+	}
+
+	public int getUsedResources() {
+		return null == resourceManager ? 0 : resourceManager.getUsedResources();
+	}
+
+	public double getResourceUtilization() {
+		int r = getResources();
+		return r <= 0 ? 0 : (double) getUsedResources() / r;
+	}
+
+	public long getAffinityHits() {
+		return null == resourceManager ? 0 : resourceManager.getAffinityHits();
+	}
+
+	public long getAffinityMisses() {
+		return null == resourceManager ? 0 : resourceManager.getAffinityMisses();
+	}
+
+	public double getAffinityHitRate() {
+		long hits = getAffinityHits();
+		long total = hits + getAffinityMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public double getLatencyBaseline() {
+		return null == limiter ? 0 : limiter.getBaseline();
+	}
+
+	public long getResourceLimitChanges() {
+		return null == limiter ? 0 : limiter.getAdjustments();
+	}
+
+	public double getQueueLatencyMean() {
+		return queueLatency.getMean();
+	}
+
+	public long getQueueLatency50() {
+		return queueLatency.getPercentile(50);
+	}
+
+	public long getQueueLatency99() {
+		return queueLatency.getPercentile(99);
+	}
+
+	public long getQueueLatency999() {
+		return queueLatency.getPercentile(99.9);
+	}
+
+	public long getQueueLatencyMax() {
+		return queueLatency.getMax();
+	}
+
+	public double getServiceLatencyMean() {
+		return serviceLatency.getMean();
+	}
+
+	public long getServiceLatency50() {
+		return serviceLatency.getPercentile(50);
+	}
+
+	public long getServiceLatency99() {
+		return serviceLatency.getPercentile(99);
+	}
+
+	public long getServiceLatency999() {
+		return serviceLatency.getPercentile(99.9);
+	}
+
+	public long getServiceLatencyMax() {
+		return serviceLatency.getMax();
+	}
+
+	public long getHistoryEvictions() {
+		return null == queue ? 0 : queue.getHistoryEvictions();
+	}
+
+	public long getDroppedLogRecords() {
+		return Log.getDroppedRecords();
+	}
+
+	public void resetLatencies() {
+		queueLatency.reset();
+		serviceLatency.reset();
+	}
+}
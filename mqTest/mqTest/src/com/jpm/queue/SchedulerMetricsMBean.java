@@ -0,0 +1,105 @@
+package com.jpm.queue;
+
+//Management interface for the scheduler metrics, latencies are in ms
+public interface SchedulerMetricsMBean {
+
+	public int getQueueDepth();
+
+	public int getQueuedGroups();
+
+	//Rough heap size of the queued messages, what queue.max.bytes limits
+	public long getQueueBytes();
+
+	public int getGroupBacklog(long groupID);
+
+	public long getEnqueued();
+
+	public long getDispatched();
+
+	public long getCompleted();
+
+	public long getFailed();
+
+	//Dispatches the gateway asked to retry, each one is sent again
+	public long getRetried();
+
+	public long getExpiredLeases();
+
+	public long getRejectedCancelled();
+
+	public long getRejectedCompleted();
+
+	//Adds turned away because the queue or the group was at capacity, see queue.overflow
+	public long getRejectedFull();
+
+	//Queued messages dropped to make room under queue.overflow=drop_oldest
+	public long getDroppedOldest();
+
+	//Adds dropped as their idempotency key was already queued, in flight or delivered within dedup.window.ms
+	public long getDuplicates();
+
+	//Idempotency keys held to check against
+	public int getIdempotencyKeys();
+
+	public long getCancelledMessages();
+
+	public long getSorts();
+
+	public long getGroupSwitches();
+
+	//Group switches forced by ordering.max.wait.ms, included in GroupSwitches
+	public long getAgedGroupSwitches();
+
+	//Queued messages currently held in the spill store rather than on the heap
+	public long getSpilledMessages();
+
+	//Resources taken from other shards when this one had none free
+	public long getBorrowedResources();
+
+	public int getResources();
+
+	public int getUsedResources();
+
+	public double getResourceUtilization();
+
+	//Dispatches of a group that had been served before, sent back to the same resource or spilled over to another.
+	//A borrowed resource counts in the shard that lent it.
+	public long getAffinityHits();
+
+	public long getAffinityMisses();
+
+	//Hits over hits and misses
+	public double getAffinityHitRate();
+
+	//Service latency the adaptive limit is steering by, 0 when resources.adaptive is off
+	public double getLatencyBaseline();
+
+	//Times the adaptive limiter has changed Resources
+	public long getResourceLimitChanges();
+
+	public double getQueueLatencyMean();
+
+	public long getQueueLatency50();
+
+	public long getQueueLatency99();
+
+	public long getQueueLatency999();
+
+	public long getQueueLatencyMax();
+
+	public double getServiceLatencyMean();
+
+	public long getServiceLatency50();
+
+	public long getServiceLatency99();
+
+	public long getServiceLatency999();
+
+	public long getServiceLatencyMax();
+
+	public long getHistoryEvictions();
+
+	public long getDroppedLogRecords();
+
+	public void resetLatencies();
+}
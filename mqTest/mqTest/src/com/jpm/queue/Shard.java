@@ -0,0 +1,416 @@
+package com.jpm.queue;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+//One partition of the Scheduler: a queue holding the groups that hash to it, its share of the resources and the
+//dispatcher threads feeding its messages to the gateway. A group only ever lives in one shard so its order is kept.
+//A shard with messages waiting and no resources of its own may borrow a free one from a shard with nothing queued.
+//Completions come back through a lock free channel to the shard's completion thread, which records the outcome,
+//requeues retries and frees the resource, so the gateway threads never wait on the queue or journal.
+//With leases on, a message the gateway keeps past the lease timeout is completed by the lease thread instead so a hung
+//gateway cannot leak the resource.
+//Dispatchers leave the queue monitor before handing a batch to the gateway, so each waits for the batch taken before
+//it from the same group to be handed over first. Other groups are not held up.
+//The simulator runs the shard without its threads, stepping dispatch, completions and leases on its own thread with
+//dispatchNow(), drainNow() and expireLeases(now) against a virtual clock.
+class Shard implements Runnable {
+
+	final int index;
+	final MessageQueue queue;
+	final ResourceManager resourceManager;
+	final SchedulerMetrics metrics;
+	final CompletionChannel completions = new CompletionChannel();
+	private final Scheduler scheduler;
+	private final boolean sharded;
+	private final Clock clock;
+	private Thread[] queueThreads = new Thread[0];
+	private Thread completionThread = null;
+	//Leases of the messages with the gateway, null if leases are off
+	private LeaseWheel leases = null;
+	//Whether an expired message goes back to the head of its group or is dropped
+	private boolean leaseRequeue = true;
+	private Thread leaseThread = null;
+	//Adjusts the resources from the service latency, null if the limit is fixed
+	private AdaptiveLimiter limiter = null;
+	//Shards that may lend this one a resource, null if borrowing is off
+	private Shard[] lenders = null;
+	private long borrowWait = 0;
+	//Latch of the last batch taken of each group, counted down once it has been handed to the gateway
+	private final ConcurrentHashMap<Long, CountDownLatch> handoffs = new ConcurrentHashMap<Long, CountDownLatch>();
+	//The groupID's processed, logged at FINE and only kept while that is on. Trimmed to about the last ORDER_LOG chars.
+	private static final int ORDER_LOG = 65536;
+	private final StringBuilder processGroupOrder = new StringBuilder();
+	private final String orderLog;
+
+	Shard(Scheduler scheduler, int index, boolean sharded, MessageQueue queue, int resources, boolean fair) {
+		this.scheduler = scheduler;
+		this.index = index;
+		this.sharded = sharded;
+		orderLog = sharded ? "Order shard[" + index + "] [" : "Order [";
+		this.queue = queue;
+		clock = scheduler.getClock();
+		queue.setClock(clock);
+		resourceManager = new ResourceManager(resources, fair);
+		metrics = queue.getMetrics();
+		metrics.setResourceManager(resourceManager);
+	}
+
+	void setAffinity(boolean affinity, long wait, int shards) {
+		resourceManager.setAffinity(affinity, wait);
+		resourceManager.setSlotNumbering(index, shards);
+	}
+
+	void setLenders(Shard[] lenders, long borrowWait) {
+		this.lenders = lenders;
+		this.borrowWait = borrowWait;
+	}
+
+	void setLeases(long timeout, long tick, boolean requeue) {
+		leases = new LeaseWheel(timeout, tick, 512, clock.currentTimeMillis());
+		leaseRequeue = requeue;
+	}
+
+	void setLimiter(int min, int max, long window, double backoff) {
+		limiter = new AdaptiveLimiter(resourceManager, min, max, window, backoff);
+		metrics.setLimiter(limiter);
+	}
+
+	//Sets the resource limit, or where the limiter carries on from
+	void setResources(int resources) {
+		if (null == limiter) {
+			resourceManager.setResources(resources);
+		} else {
+			limiter.setLimit(resources);
+		}
+	}
+
+	void start(int dispatchers, String name) {
+		completionThread = new Thread(new Runnable() {
+			public void run() {
+				drainCompletions();
+			}
+		});
+		completionThread.setName(sharded ? "Completions-" + index : "Completions");
+		completions.setConsumer(completionThread);
+		completionThread.start();
+		if (null != leases) {
+			leaseThread = new Thread(new Runnable() {
+				public void run() {
+					expireLeases();
+				}
+			});
+			leaseThread.setName(sharded ? "Leases-" + index : "Leases");
+			leaseThread.setDaemon(true);
+			leaseThread.start();
+		}
+		queueThreads = new Thread[dispatchers];
+		for (int i = 0; i < dispatchers; i++) {
+			queueThreads[i] = new Thread(this);
+			queueThreads[i].setName(dispatchers == 1 ? name : name + "-" + i);
+			queueThreads[i].start();
+		}
+	}
+
+	void interrupt() {
+		for (Thread t : queueThreads) {
+			t.interrupt();
+		}
+		if (null != completionThread) {
+			completionThread.interrupt();
+		}
+		if (null != leaseThread) {
+			leaseThread.interrupt();
+		}
+	}
+
+	//Wakes once a tick to take back the resources of messages the gateway has held too long
+	private void expireLeases() {
+		try {
+			for (;;) {
+				Thread.sleep(leases.getTick());
+				expireLeases(clock.currentTimeMillis());
+			}
+		} catch (InterruptedException ex) {
+			Log.logger.info("Interrupted, stopping leases ["+Thread.currentThread().getName()+"]");
+		}
+	}
+
+	//Posts the messages whose lease has run out by now as completed, does nothing if leases are off
+	void expireLeases(long now) {
+		if (null == leases) {
+			return;
+		}
+		List<Message> expired;
+		//Completed holding the wheel so a message cannot be leased again for its next dispatch in between
+		synchronized (leases) {
+			expired = leases.expire(now);
+			if (null == expired) {
+				return;
+			}
+			for (Iterator<Message> i = expired.iterator(); i.hasNext();) {
+				Message msg = i.next();
+				//Loses to a completion that is already on its way
+				if (msg.complete(msg.leaseAttempt, leaseRequeue ? Outcome.RETRY : Outcome.FAILURE)) {
+					msg.leaseExpired = true;
+				} else {
+					i.remove();
+				}
+			}
+		}
+		for (Message msg : expired) {
+			Log.logger.warning("Lease of ["+leases.getTimeout()+"] ms expired for message with data["+msg.getData()+"] groupID["+msg.getGroupID()+"], "
+					+(leaseRequeue ? "requeueing it" : "dropping it"));
+			completions.post(msg);
+		}
+	}
+
+	private void drainCompletions() {
+		try {
+			for (;;) {
+				finishAll(completions.take());
+			}
+		} catch (InterruptedException ex) {
+			Log.logger.info("Interrupted, stopping completions ["+Thread.currentThread().getName()+"]");
+		}
+	}
+
+	//Finishes whatever has been completed so far without waiting, returns false if there was nothing
+	boolean drainNow() {
+		Message msg = completions.poll();
+		if (null == msg) {
+			return false;
+		}
+		finishAll(msg);
+		return true;
+	}
+
+	//Every message on a list from the completion channel
+	private void finishAll(Message msg) {
+		while (null != msg) {
+			//Unlink first, a retry can be dispatched and completed again before we move on
+			Message next = msg.nextCompleted;
+			msg.nextCompleted = null;
+			finished(msg);
+			msg = next;
+		}
+	}
+
+	//Record the outcome then hand back the resource, which may belong to the shard that lent it.
+	//A retry is back in the queue before the resource is freed so nothing later in its group can overtake it.
+	private void finished(Message msg) {
+		ResourceManager resource = msg.resource;
+		int slot = msg.slot;
+		DispatchBatch batch = msg.batch;
+		Outcome outcome = msg.outcome;
+		if (null != leases) {
+			leases.remove(msg);
+		}
+		if (msg.leaseExpired) {
+			metrics.leaseExpired();
+		}
+		long now = clock.currentTimeMillis();
+		if (null != limiter) {
+			limiter.sample(now - msg.getDispatchTime(), outcome != Outcome.SUCCESS, now);
+		}
+		if (outcome == Outcome.RETRY && msg.attempts > scheduler.getRetryMax()) {
+			Log.logger.severe("Giving up on message with data["+msg.getData()+"] groupID["+msg.getGroupID()+"] after ["+msg.attempts+"] attempts");
+			outcome = Outcome.FAILURE;
+		}
+		switch (outcome) {
+		case SUCCESS:
+			metrics.completed(msg, now);
+			queue.completed(msg);
+			break;
+		case FAILURE:
+			metrics.failed();
+			queue.completed(msg, false);
+			break;
+		case RETRY:
+			metrics.retried();
+			if (!queue.requeue(msg)) {
+				//Cancelled whilst it was with the gateway
+				queue.completed(msg, false);
+			}
+			break;
+		}
+		//Returning the resource wakes a dispatcher waiting for one
+		if (null == batch || batch.finished()) {
+			resource.release(slot);
+		}
+	}
+
+	//Block until there is a resource, returning the manager it came from. When borrowing, dispatchers wait for a
+	//message before a resource so an idle shard is not sat holding resources another could use.
+	private ResourceManager acquire() throws InterruptedException {
+		if (null == lenders) {
+			resourceManager.acquire();
+			return resourceManager;
+		}
+		for (;;) {
+			queue.awaitMessage();
+			if (resourceManager.tryAcquire(borrowWait, TimeUnit.MILLISECONDS)) {
+				return resourceManager;
+			}
+			for (Shard s : lenders) {
+				if (s.queue.isEmpty() && s.resourceManager.tryAcquire()) {
+					metrics.borrowed();
+					return s.resourceManager;
+				}
+			}
+		}
+	}
+
+	//As acquire() without waiting, null if neither this shard nor one that may lend has a resource free
+	private ResourceManager tryAcquire() {
+		if (queue.isEmpty()) {
+			return null;
+		}
+		if (resourceManager.tryAcquire()) {
+			return resourceManager;
+		}
+		if (null != lenders) {
+			for (Shard s : lenders) {
+				if (s.queue.isEmpty() && s.resourceManager.tryAcquire()) {
+					metrics.borrowed();
+					return s.resourceManager;
+				}
+			}
+		}
+		return null;
+	}
+
+	//Called holding the queue monitor
+	private void logOrder(List<Message> batch) {
+		for (Message msg : batch) {
+			processGroupOrder.append("(").append(msg.getGroupID()).append(")");
+		}
+		if (processGroupOrder.length() > 2 * ORDER_LOG) {
+			processGroupOrder.delete(0, processGroupOrder.indexOf("(", processGroupOrder.length() - ORDER_LOG));
+		}
+		Log.logger.fine(orderLog+processGroupOrder+"]");
+	}
+
+	@Override
+	public void run() {
+		//This loop takes a resource, then the next message in order and hands it to the gateway.
+		//Several dispatchers may run this at once, the queue decides the order each one receives messages in.
+		//In batch mode the resource is used for a run of messages from the same group.
+		try {
+			for (;;) {
+				dispatch(acquire(), true);
+			}
+		} catch (InterruptedException ex) {
+			Log.logger.info("Interrupted, stopping dispatcher ["+Thread.currentThread().getName()+"]");
+		}
+	}
+
+	//Hands out one batch if there is a message and a resource for it, without waiting for either. Returns false if not.
+	boolean dispatchNow() throws InterruptedException {
+		ResourceManager resource = tryAcquire();
+		return null != resource && dispatch(resource, false);
+	}
+
+	//Takes the next batch for a resource already held and hands it to the gateway. The resource goes straight back if
+	//there is nothing to take, when borrowing another dispatcher may have got to the message first.
+	private boolean dispatch(ResourceManager resource, boolean wait) throws InterruptedException {
+		List<Message> batch = null;
+		CountDownLatch handoff = null;
+		CountDownLatch previous = null;
+		long ticket = 0;
+		try {
+			synchronized (queue) {
+				//Waits on the queue until a message is added
+				if (!wait || null != lenders) {
+					batch = queue.pollBatch(scheduler.getBatchSize(), scheduler.getBatchLinger());
+				} else if (scheduler.getBatchSize() > 1) {
+					batch = queue.takeBatch(scheduler.getBatchSize(), scheduler.getBatchLinger());
+				} else {
+					batch = Collections.singletonList(queue.takeFirst());
+				}
+				if (null != batch) {
+					long now = clock.currentTimeMillis();
+					for (Message msg : batch) {
+						msg.dispatched();
+						msg.resource = resource;
+						metrics.dispatched(msg, now);
+					}
+					if (Log.logger.isLoggable(Level.FINE)) {
+						logOrder(batch);
+					}
+					//Taken in queue order so slots are given out, and the group's batches handed over, in the order
+					//they left the queue
+					ticket = resource.ticket();
+					handoff = new CountDownLatch(1);
+					previous = handoffs.put(batch.get(0).getGroupID(), handoff);
+				}
+			}
+		} finally {
+			if (null == batch) {
+				resource.release();
+			}
+		}
+		if (null == batch) {
+			return false;
+		}
+		int slot = -1;
+		boolean sent = false;
+		try {
+			//Outside the queue monitor as it may wait for the slot that last served the group
+			slot = resource.assign(batch.get(0).getGroupID(), ticket);
+			long now = clock.currentTimeMillis();
+			for (Message msg : batch) {
+				msg.slot = slot;
+				msg.setDispatchTime(now);
+				if (null != leases) {
+					leases.add(msg, now);
+				}
+			}
+			if (Log.logger.isLoggable(Level.FINE)) {
+				for (Message msg : batch) {
+					Log.logger.fine("Processing message with data["+msg.getData()+"] groupID["+msg.getGroupID()+"] added on["+msg.getTime()+"]");
+				}
+			}
+			if (null != previous) {
+				previous.await();
+			}
+			sent = true;
+			if (batch.size() == 1) {
+				scheduler.sendToGateway(batch.get(0));
+			} else {
+				scheduler.sendToGateway(batch);
+			}
+		} finally {
+			if (!sent) {
+				undispatch(batch, resource, slot);
+			}
+			handoff.countDown();
+			handoffs.remove(batch.get(0).getGroupID(), handoff);
+		}
+		return true;
+	}
+
+	//A dispatcher interrupted before the gateway had the batch puts it back at the head of its group, as a retry
+	//would be, and returns the resource with its slot if it had one
+	private void undispatch(List<Message> batch, ResourceManager resource, int slot) {
+		for (Message msg : batch) {
+			if (null != leases) {
+				leases.remove(msg);
+			}
+			msg.undispatched();
+			if (!queue.requeue(msg)) {
+				queue.completed(msg, false);
+			}
+		}
+		if (slot < 0) {
+			resource.release();
+		} else {
+			resource.release(slot);
+		}
+	}
+}
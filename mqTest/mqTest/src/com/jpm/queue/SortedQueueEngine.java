@@ -0,0 +1,199 @@
+package com.jpm.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+//The original queue implementation. Messages are held in an ArrayList which is re-sorted with the comparator
+//whenever a message is added or the group being processed changes.
+public class SortedQueueEngine extends ArrayList<Message> implements QueueEngine {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 681702890102712268L;
+	private MessageQueue queue = null;
+	private Comparator<Message> comparator = null;
+	private boolean reorder = false;
+	//Messages queued per group, the group history asks for this whenever it trims
+	private final Map<Long, int[]> groupCounts = new HashMap<Long, int[]>();
+	//Messages ordered by age, only built once oldest() is first asked for so there is no cost without aging
+	private transient TreeSet<Message> byAge = null;
+	private long bytes = 0;
+
+	public void setQueue(MessageQueue queue) {
+		this.queue = queue;
+		if (null != queue.getSpill()) {
+			Log.logger.warning("SortedQueueEngine keeps the whole backlog in memory, the spill store is not used");
+		}
+	}
+
+	public void setComparator(Comparator<Message> comparator) {
+		this.comparator = comparator;
+		reorder = true;
+	}
+
+	@Override
+	public boolean add(Message msg) {
+		boolean ret = super.add(msg);
+		if (ret) {
+			reorder = true;
+			bytes += SpillStore.footprint(msg);
+			if (null != byAge) {
+				byAge.add(msg);
+			}
+			int[] n = groupCounts.get(msg.getGroupID());
+			if (null == n) {
+				groupCounts.put(msg.getGroupID(), new int[] {1});
+			} else {
+				n[0]++;
+			}
+		}
+		return ret;
+	}
+
+	//Check the queue is in the correct order then return the first message
+	public Message pollFirst() {
+		if (isEmpty()) {
+			return null;
+		}
+		sort();
+		return removeAt(0);
+	}
+
+	public Message pollFirst(long groupID) {
+		if (isEmpty()) {
+			return null;
+		}
+		sort();
+		return get(0).getGroupID() == groupID ? removeAt(0) : null;
+	}
+
+	//Walks the sorted list to the first of the group
+	public Message pollGroupHead(long groupID) {
+		if (!groupCounts.containsKey(groupID)) {
+			return null;
+		}
+		sort();
+		for (int i = 0; i < size(); i++) {
+			if (get(i).getGroupID() == groupID) {
+				return removeAt(i);
+			}
+		}
+		return null;
+	}
+
+	private void sort() {
+		//Should check if anything has changed to make this inconsistent before reordering
+		if (reorder) {
+			Log.logger.fine("Triggering reordering of the queued messages. lastGroupID["+queue.lastGroupID+"]");
+			Collections.sort(this,comparator);
+			queue.getMetrics().sorted();
+			Log.logger.fine("Reordering complete");
+		}
+	}
+
+	private Message removeAt(int i) {
+		Message msg = remove(i);
+		bytes -= SpillStore.footprint(msg);
+		if (null != byAge) {
+			byAge.remove(msg);
+		}
+		int[] n = groupCounts.get(msg.getGroupID());
+		if (--n[0] == 0) {
+			groupCounts.remove(msg.getGroupID());
+		}
+		return msg;
+	}
+
+	public void lastGroupChanged(long previousGroupID) {
+		reorder = true;
+	}
+
+	public void processedHistoryCleared() {
+		reorder = true;
+	}
+
+	//Removes all the group messages from the queue in a single pass, sliding the rest down over them.
+	//What is left keeps its order so there is no need to sort again.
+	public int removeGroup(long groupID) {
+		int[] n = groupCounts.remove(groupID);
+		if (null == n) {
+			return 0;
+		}
+		int size = size();
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			Message msg = get(i);
+			if (msg.getGroupID() != groupID) {
+				if (kept != i) {
+					set(kept, msg);
+				}
+				kept++;
+			} else {
+				bytes -= SpillStore.footprint(msg);
+				if (null != byAge) {
+					byAge.remove(msg);
+				}
+			}
+		}
+		removeRange(kept, size);
+		return n[0];
+	}
+
+	public Message oldest() {
+		if (isEmpty()) {
+			return null;
+		}
+		if (null == byAge) {
+			byAge = new TreeSet<Message>(new AgeOrder());
+			byAge.addAll(this);
+		}
+		return byAge.first();
+	}
+
+	public int groupSize(long groupID) {
+		int[] n = groupCounts.get(groupID);
+		return null == n ? 0 : n[0];
+	}
+
+	public int groupCount() {
+		return groupCounts.size();
+	}
+
+	public long bytes() {
+		return bytes;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		groupCounts.clear();
+		bytes = 0;
+		byAge = null;
+	}
+
+	public List<Message> toList() {
+		List<Message> l = new ArrayList<Message>(this);
+		Collections.sort(l,comparator);
+		return l;
+	}
+
+	//Nothing is ever spilled
+	public long[] copy(List<Message> messages) {
+		messages.addAll(this);
+		return new long[0];
+	}
+
+	//Same tie breaks as MessageComparator, every queued message has its own sequence so none compare equal
+	private static class AgeOrder implements Comparator<Message> {
+
+		public int compare(Message m1, Message m2) {
+			return GroupedQueueEngine.compareMessages(m1, m2);
+		}
+	}
+}
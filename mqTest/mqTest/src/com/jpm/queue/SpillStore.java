@@ -0,0 +1,247 @@
+package com.jpm.queue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+//Overflow tier for the queue backlog. Once the messages held on the heap pass maxMessages or maxBytes the engine writes
+//the tail of each group here, keeping the first keep messages of every group in memory, and reads it back as the group
+//is dispatched. Records are [length][MessageCodec record] in memory mapped segment files and are addressed by a long of
+//segment number and offset. A segment is deleted once every record in it has been read back or removed.
+//The files are scratch space, anything spilled is in the snapshot and journal as well, so they are cleared on startup.
+public class SpillStore {
+
+	private static final int RECORD_HEADER = 4;
+
+	private final File dir;
+	private final int segmentSize;
+	private final long maxMessages;
+	private final long maxBytes;
+	private final int keep;
+	private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+	private Segment current = null;
+	private int nextSegment = 1;
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	//Records written and not yet read back or released
+	private volatile long spilled = 0;
+	//Copies taken with pin() not yet finished with, no segment is deleted or reused while there are any
+	private int pins = 0;
+
+	//0 for maxMessages or maxBytes means that limit is not used
+	public SpillStore(File dir, int segmentSize, long maxMessages, long maxBytes, int keep) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.keep = Math.max(2, keep);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create spill directory [" + dir + "]");
+		}
+		for (File f : dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().startsWith("spill-") && f.getName().endsWith(".seg");
+			}
+		})) {
+			if (!f.delete()) {
+				Log.logger.severe("Error deleting old spill segment [" + f + "]");
+			}
+		}
+	}
+
+	//True when the heap holds as much of the backlog as it is allowed to
+	boolean isFull(long messages, long bytes) {
+		return (maxMessages > 0 && messages >= maxMessages) || (maxBytes > 0 && bytes >= maxBytes);
+	}
+
+	//Messages each group keeps in memory ahead of its spilled tail
+	int getKeep() {
+		return keep;
+	}
+
+	//Rough heap cost of a queued message used against maxBytes
+	static long footprint(Message msg) {
+		return 80 + (null == msg.getData() ? 0 : 2L * msg.getData().length());
+	}
+
+	long write(Message msg) throws IOException {
+		byte[] data = MessageCodec.encodeData(msg);
+		int size = MessageCodec.size(msg, data);
+		if (scratch.capacity() < size) {
+			scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+		}
+		scratch.clear();
+		MessageCodec.write(scratch, msg, data);
+		scratch.flip();
+		if (null == current || current.buffer.remaining() < RECORD_HEADER + size) {
+			roll(RECORD_HEADER + size);
+		}
+		long position = ((long) current.number << 32) | current.buffer.position();
+		current.buffer.putInt(size);
+		current.buffer.put(scratch);
+		current.live++;
+		spilled++;
+		return position;
+	}
+
+	//Reads the record back and releases it
+	Message read(long position) throws IOException {
+		Message msg = peek(position);
+		release(position);
+		return msg;
+	}
+
+	//Reads the record leaving it in the store
+	Message peek(long position) throws IOException {
+		ByteBuffer b = segment(position).buffer.duplicate();
+		b.position((int) position);
+		int size = b.getInt();
+		b.limit(b.position() + size);
+		return MessageCodec.read(b);
+	}
+
+	//Drops a record without reading it, for a cancelled group or a cleared queue
+	void release(long position) throws IOException {
+		release(segment(position));
+	}
+
+	private Segment segment(long position) throws IOException {
+		Segment s = segments.get((int) (position >>> 32));
+		if (null == s) {
+			throw new IOException("No spill segment for record [" + Long.toHexString(position) + "]");
+		}
+		return s;
+	}
+
+	private void release(Segment s) {
+		spilled--;
+		//A pinned segment is dealt with by unpin()
+		if (--s.live > 0 || pins > 0) {
+			return;
+		}
+		if (s == current) {
+			//Nothing left in it so start writing from the beginning again
+			current.buffer.clear();
+		} else {
+			segments.remove(s.number);
+			s.delete();
+		}
+	}
+
+	private void roll(int needed) throws IOException {
+		if (null != current && current.live == 0 && pins == 0) {
+			segments.remove(current.number);
+			current.delete();
+		}
+		int number = nextSegment++;
+		File f = new File(dir, String.format("spill-%08d.seg", number));
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		int size = Math.max(segmentSize, needed);
+		file.setLength(size);
+		current = new Segment(number, f, file, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+		segments.put(number, current);
+		Log.logger.info("Started spill segment [" + f.getName() + "]");
+	}
+
+	//Keeps every record written so far readable through the returned Reader, from any thread, until unpin(). Both are
+	//called holding the queue monitor like the rest of the store.
+	Reader pin() {
+		pins++;
+		Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+		for (Segment s : segments.values()) {
+			buffers.put(s.number, s.buffer.duplicate());
+		}
+		return new Reader(buffers);
+	}
+
+	//Deletes the segments emptied while pinned
+	void unpin() {
+		if (--pins > 0) {
+			return;
+		}
+		Iterator<Segment> i = segments.values().iterator();
+		while (i.hasNext()) {
+			Segment s = i.next();
+			if (s.live > 0) {
+				continue;
+			}
+			if (s == current) {
+				current.buffer.clear();
+			} else {
+				i.remove();
+				s.delete();
+			}
+		}
+	}
+
+	//Records written and not yet read back or released
+	public long getSpilled() {
+		return spilled;
+	}
+
+	//Remove every segment, the engine using the store must not have anything spilled
+	public void delete() {
+		for (Segment s : segments.values()) {
+			s.delete();
+		}
+		segments.clear();
+		current = null;
+		spilled = 0;
+	}
+
+	//Reads records that were in the store when it was pinned without touching the store itself
+	static class Reader {
+
+		private final Map<Integer, ByteBuffer> buffers;
+
+		private Reader(Map<Integer, ByteBuffer> buffers) {
+			this.buffers = buffers;
+		}
+
+		Message read(long position) throws IOException {
+			ByteBuffer segment = buffers.get((int) (position >>> 32));
+			if (null == segment) {
+				throw new IOException("No spill segment for record [" + Long.toHexString(position) + "]");
+			}
+			ByteBuffer b = segment.duplicate();
+			b.position((int) position);
+			int size = b.getInt();
+			b.limit(b.position() + size);
+			return MessageCodec.read(b);
+		}
+	}
+
+	private static class Segment {
+
+		private final int number;
+		private final File file;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		//Records in the segment still to be read back
+		private int live = 0;
+
+		Segment(int number, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.raf = raf;
+			this.buffer = buffer;
+		}
+
+		void delete() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Log.logger.severe("Error closing spill segment [" + e.getMessage() + "]");
+			}
+			if (!file.delete()) {
+				Log.logger.severe("Error deleting spill segment [" + file + "]");
+			}
+		}
+	}
+}
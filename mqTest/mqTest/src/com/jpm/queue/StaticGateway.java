@@ -0,0 +1,35 @@
+package com.jpm.queue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Properties;
+
+//Adapts a class with a static send(Message) method, such as com.jpm.test.Gateway, to the Gateway interface.
+//The method is looked up once rather than for every message.
+public class StaticGateway implements Gateway {
+
+	private final Method method;
+
+	public StaticGateway(Class<?> c) throws NoSuchMethodException {
+		method = c.getMethod("send", Message.class);
+		if (!Modifier.isStatic(method.getModifiers())) {
+			throw new NoSuchMethodException("send(Message) is not static in class ["+c.getName()+"]");
+		}
+	}
+
+	public void init(Properties properties) {
+	}
+
+	public void send(Message msg) throws Exception {
+		try {
+			method.invoke(null, msg);
+		} catch (InvocationTargetException e) {
+			//Report what the gateway itself threw
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.jpm.queue;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Counter spread over several cells so threads updating it at the same time rarely touch the same cache line.
+//Reading adds the cells up so it is only exact when nothing is updating it.
+public class StripedCounter {
+
+	private static final int STRIPES = 16;
+	//Cells are 8 longs apart to keep them on separate cache lines
+	private static final int PAD = 8;
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long value) {
+		int h = (int) Thread.currentThread().getId();
+		h ^= h >>> 16;
+		cells.addAndGet((h & (STRIPES - 1)) * PAD, value);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PAD, 0);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.jpm.queue;
+
+import java.util.Properties;
+
+//Base class for a gateway that processes each message on the calling dispatcher thread.
+//The message is completed as soon as deliver() returns.
+public abstract class SyncGateway implements Gateway {
+
+	public void init(Properties properties) throws Exception {
+	}
+
+	public void send(Message msg) throws Exception {
+		//Read first, a lease may expire and the message be sent again while deliver() is running
+		int attempt = msg.getAttempt();
+		deliver(msg);
+		msg.completed(attempt, Outcome.SUCCESS);
+	}
+
+	//Process the message, blocking until the downstream system has accepted it
+	protected abstract void deliver(Message msg) throws Exception;
+}
@@ -0,0 +1,94 @@
+package com.jpm.test;
+
+import java.util.List;
+
+import com.jpm.queue.AddResult;
+import com.jpm.queue.IngestClient;
+
+//Feeds a running Scheduler through its ingest endpoint from another process, see ingest.port
+public class IngestTester {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0 || args[0].toLowerCase().equals("help")) {
+			System.out.println("Usage: IngestTester [-host h] [-port p] [-clients n] commands");
+			System.out.println("Mx - send a message with the groupID of x, Tx - send a termination message for groupID x");
+			System.out.println("Xx - cancel groupID x, Ex - end groupID x without a termination message");
+			System.out.println("Lx - each client sends x messages over 100 groups and the rate is reported");
+			System.out.println("Sx - sleep for x seconds");
+			System.exit(0);
+		}
+		String host = "127.0.0.1";
+		int port = 7070;
+		int clients = 1;
+		int first = 0;
+		while (first < args.length - 1 && args[first].startsWith("-")) {
+			if (args[first].equals("-host")) {
+				host = args[first + 1];
+			} else if (args[first].equals("-port")) {
+				port = Integer.valueOf(args[first + 1]);
+			} else if (args[first].equals("-clients")) {
+				clients = Integer.valueOf(args[first + 1]);
+			}
+			first += 2;
+		}
+		IngestClient c = new IngestClient(host, port);
+		int i = 0;
+		for (int a = first; a < args.length; a++) {
+			String cmd = args[a];
+			long l = cmd.length() > 1 ? Long.valueOf(cmd.substring(1)) : 0;
+			switch (Character.toLowerCase(cmd.charAt(0))) {
+				case 'm' : c.submit(l, "ingest"+i++);break;
+				case 't' : c.submit(l, "ingest"+i++, true);break;
+				case 'x' : c.cancel(l);break;
+				case 'e' : c.terminate(l);break;
+				case 'l' : print(c.sync());load(host, port, clients, l);break;
+				case 's' : print(c.sync());Thread.sleep(l * 1000);break;
+				default : System.out.println("Invalid argument "+cmd);
+			}
+		}
+		print(c.sync());
+		c.close();
+	}
+
+	private static void print(List<AddResult> results) {
+		for (AddResult r : results) {
+			System.out.println(r);
+		}
+	}
+
+	//Every client on its own connection and thread
+	private static void load(final String host, final int port, int clients, final long count) throws Exception {
+		Thread[] threads = new Thread[clients];
+		final long[] accepted = new long[clients];
+		long start = System.nanoTime();
+		for (int t = 0; t < clients; t++) {
+			final int n = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						IngestClient c = new IngestClient(host, port);
+						for (long m = 0; m < count; m++) {
+							c.submit(n * 100 + m % 100, "load"+m);
+						}
+						for (AddResult r : c.sync()) {
+							if (r == AddResult.ACCEPTED) {
+								accepted[n]++;
+							}
+						}
+						c.close();
+					} catch (Exception e) {
+						System.out.println("Client ["+n+"] failed Error["+e+"]");
+					}
+				}
+			});
+			threads[t].start();
+		}
+		long total = 0;
+		for (int t = 0; t < clients; t++) {
+			threads[t].join();
+			total += accepted[t];
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Accepted [%d] of [%d] messages in [%.2f] s, [%.0f] messages/s", total, count * clients, secs, total / secs));
+	}
+}
@@ -0,0 +1,105 @@
+package com.jpm.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//How long a simulated resource takes to process a message, configured with the simulator.latency properties
+public abstract class LatencyModel {
+
+	//Returns the time in ms the next message should take
+	public abstract long nextMillis(Random random);
+
+	//simulator.latency is one of fixed, uniform, exponential or replay
+	public static LatencyModel fromProperties(Properties properties) throws IOException {
+		String type = properties.getProperty("simulator.latency", "uniform").toLowerCase();
+		if (type.equals("fixed")) {
+			return new Fixed(Long.valueOf(properties.getProperty("simulator.latency.ms", "1000")));
+		} else if (type.equals("uniform")) {
+			return new Uniform(Long.valueOf(properties.getProperty("simulator.latency.min", "0")),
+					Long.valueOf(properties.getProperty("simulator.latency.max", "10000")));
+		} else if (type.equals("exponential")) {
+			return new Exponential(Double.valueOf(properties.getProperty("simulator.latency.mean", "5000")));
+		} else if (type.equals("replay")) {
+			return new Replay(properties.getProperty("simulator.latency.file"));
+		}
+		throw new IllegalArgumentException("Unknown simulator.latency ["+type+"]");
+	}
+
+	public static class Fixed extends LatencyModel {
+		private final long ms;
+
+		public Fixed(long ms) {
+			this.ms = ms;
+		}
+
+		public long nextMillis(Random random) {
+			return ms;
+		}
+	}
+
+	//Any value between min and max (exclusive) is equally likely
+	public static class Uniform extends LatencyModel {
+		private final long min;
+		private final int range;
+
+		public Uniform(long min, long max) {
+			this.min = min;
+			this.range = (int) Math.max(1, max - min);
+		}
+
+		public long nextMillis(Random random) {
+			return min + random.nextInt(range);
+		}
+	}
+
+	public static class Exponential extends LatencyModel {
+		private final double mean;
+
+		public Exponential(double mean) {
+			this.mean = mean;
+		}
+
+		public long nextMillis(Random random) {
+			return (long) (-mean * Math.log(1.0 - random.nextDouble()));
+		}
+	}
+
+	//Plays back recorded latencies, one value in ms per line, starting again at the end of the file
+	public static class Replay extends LatencyModel {
+		private final long[] values;
+		private final AtomicInteger next = new AtomicInteger();
+
+		public Replay(String fileName) throws IOException {
+			List<Long> l = new ArrayList<Long>();
+			BufferedReader in = new BufferedReader(new FileReader(fileName));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.length() > 0 && !line.startsWith("#")) {
+						l.add(Long.valueOf(line));
+					}
+				}
+			} finally {
+				in.close();
+			}
+			if (l.isEmpty()) {
+				throw new IOException("No latencies found in ["+fileName+"]");
+			}
+			values = new long[l.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = l.get(i);
+			}
+		}
+
+		public long nextMillis(Random random) {
+			return values[(next.getAndIncrement() & Integer.MAX_VALUE) % values.length];
+		}
+	}
+}
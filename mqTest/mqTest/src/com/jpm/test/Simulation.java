@@ -0,0 +1,475 @@
+package com.jpm.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+
+import com.jpm.queue.AddResult;
+import com.jpm.queue.BatchGateway;
+import com.jpm.queue.Clock;
+import com.jpm.queue.IngestClient;
+import com.jpm.queue.LatencyHistogram;
+import com.jpm.queue.Message;
+import com.jpm.queue.Outcome;
+import com.jpm.queue.Scheduler;
+import com.jpm.queue.SchedulerMetrics;
+
+//Runs Tester scenarios through the real Scheduler on a virtual clock instead of real threads and sleeps. The shards,
+//with their batching, resource affinity, leases, adaptive limit and borrowing, are stepped on this thread against a
+//gateway that holds each resource for a time from the simulator.latency properties, so a scenario that takes minutes
+//with the real Scheduler finishes in milliseconds and the dispatch order can be checked against an expect line.
+//The shards run as they would with one dispatcher each. A batch takes only what is queued, dispatch.batch.linger.ms
+//and resources.affinity.wait.ms are not simulated as nothing could arrive or be freed while a dispatcher waited.
+//
+//A scenario is a file of the Tester commands, or the commands themselves on the command line. On top of
+//M/T/S/R/C/P/F/Q it understands
+//  Wx  - wait x milliseconds of virtual time
+//  Ux  - send a message for a random one of x groups
+//  Xx  - cancel group x
+//  Ex  - end group x without a last message
+//  I   - send the M/T/X/E commands after it to the Scheduler's ingest endpoint over a localhost connection, each one
+//        acknowledged before the shards are stepped
+//  cmd*n - repeat a command n times, e.g. M1*1000
+//  expect 1,2,2,1 - the group order the messages must be dispatched in
+//Lines starting with # or // are comments. Arguments of the form key=value override scheduler.properties.
+public class Simulation implements Clock {
+
+	//Only print the whole order for small runs
+	private static final int MAX_ORDER = 1000;
+
+	private final Scheduler scheduler;
+	private final LatencyModel latency;
+	private final double failureRate;
+	private final double retryRate;
+	private final double hangRate;
+	private final long coldMillis;
+	//Leases are expired once a tick while anything is with the gateway, 0 if leases are off
+	private final long leaseTick;
+	//Group each slot last served, for simulator.cold.ms
+	private final Map<Integer, Long> warm = new HashMap<Integer, Long>();
+	private final Random random;
+	private final PriorityQueue<Completion> running = new PriorityQueue<Completion>();
+	//Set by the I command
+	private IngestClient ingest = null;
+	private long now = 0;
+	private int sent = 0;
+	private long added = 0;
+	private long rejected = 0;
+	private long dispatched = 0;
+	private long hung = 0;
+	private final List<Long> order = new ArrayList<Long>();
+	private final LatencyHistogram queueLatency = new LatencyHistogram();
+	private final LatencyHistogram serviceLatency = new LatencyHistogram();
+	private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+	public Simulation(Properties properties, long seed) throws IOException {
+		latency = LatencyModel.fromProperties(properties);
+		failureRate = Double.valueOf(properties.getProperty("simulator.failure.rate", "0"));
+		retryRate = Double.valueOf(properties.getProperty("simulator.retry.rate", "0"));
+		hangRate = Double.valueOf(properties.getProperty("simulator.hang.rate", "0"));
+		coldMillis = Long.valueOf(properties.getProperty("simulator.cold.ms", "0"));
+		leaseTick = Long.valueOf(properties.getProperty("dispatch.lease.ms", "0")) > 0
+				? Math.max(1, Long.valueOf(properties.getProperty("dispatch.lease.tick.ms", "100"))) : 0;
+		random = new Random(seed);
+		scheduler = Scheduler.simulate(properties, new VirtualGateway(), this);
+	}
+
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	//Messages holding a resource until their virtual completion time
+	private static class Completion implements Comparable<Completion> {
+		final long time;
+		final long sequence;
+		final List<Message> msgs;
+		//Which send of each message this is, so a completion after its lease has expired is ignored
+		final int[] attempts;
+
+		Completion(long time, long sequence, List<Message> msgs) {
+			this.time = time;
+			this.sequence = sequence;
+			this.msgs = msgs;
+			attempts = new int[msgs.size()];
+			for (int i = 0; i < attempts.length; i++) {
+				attempts[i] = msgs.get(i).getAttempt();
+			}
+		}
+
+		public int compareTo(Completion o) {
+			if (time != o.time) {
+				return time < o.time ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+
+	//Stands in for SimulatorGateway, the resource is held until the completion comes up on the virtual clock
+	private class VirtualGateway implements BatchGateway {
+
+		public void init(Properties properties) {
+		}
+
+		public void send(Message msg) throws Exception {
+			sendBatch(Collections.singletonList(msg));
+		}
+
+		public void sendBatch(List<Message> msgs) throws Exception {
+			for (Message msg : msgs) {
+				dispatched++;
+				order.add(msg.getGroupID());
+				queueLatency.record(now - msg.getTime());
+			}
+			if (failureRate > 0 && random.nextDouble() < failureRate) {
+				throw new Exception("Simulated gateway failure");
+			}
+			long time = latency.nextMillis(random);
+			if (coldMillis > 0) {
+				Message first = msgs.get(0);
+				Long last = warm.put(first.getSlot(), first.getGroupID());
+				if (null == last || last != first.getGroupID()) {
+					time += coldMillis;
+				}
+			}
+			running.add(new Completion(now + time, dispatched, msgs));
+		}
+	}
+
+	//Commands are applied one at a time at the current virtual time, the shards are stepped after each one
+	//just as their dispatchers waiting on the queue would run
+	public void run(List<String> commands) throws InterruptedException, IOException {
+		try {
+			for (String c : commands) {
+				int n = 0;
+				if (c.length() > 1) {
+					n = Integer.valueOf(c.substring(1));
+				}
+				switch (Character.toLowerCase(c.charAt(0))) {
+					case 'm' : send(n, false);break;
+					case 't' : send(n, true);break;
+					case 'u' : add(new Message(nextData(), random.nextInt(Math.max(1, n)), false, now));break;
+					case 's' : advance(now + n * 1000L);break;
+					case 'w' : advance(now + n);break;
+					case 'r' : scheduler.setResources(n);break;
+					case 'x' : cancel(n);break;
+					case 'e' : terminate(n);break;
+					case 'i' : ingest = new IngestClient("127.0.0.1", scheduler.listen());break;
+					case 'c' : scheduler.clearCancelledGroupHistory();break;
+					case 'p' : scheduler.clearProcessedGroupHistory();break;
+					case 'f' : scheduler.clearCompletedGroupHistory();break;
+					case 'q' : scheduler.clearQueue();break;
+					default : throw new IllegalArgumentException("Invalid command ["+c+"]");
+				}
+				step();
+			}
+			advance(Long.MAX_VALUE);
+		} finally {
+			if (null != ingest) {
+				ingest.close();
+				scheduler.stopListening();
+			}
+		}
+	}
+
+	//Zero padded so the data lines up with the order the messages were sent
+	private String nextData() {
+		return String.format("sim%010d", sent++);
+	}
+
+	private void add(Message msg) {
+		if (scheduler.addToQueue(msg)) {
+			added++;
+		} else {
+			rejected++;
+		}
+	}
+
+	//Over the ingest endpoint the message is timestamped by the client on the real clock
+	private void send(long groupID, boolean lastMessage) throws IOException {
+		if (null == ingest) {
+			add(new Message(nextData(), groupID, lastMessage, now));
+			return;
+		}
+		ingest.submit(groupID, nextData(), lastMessage);
+		if (ingest.sync().get(0) == AddResult.ACCEPTED) {
+			added++;
+		} else {
+			rejected++;
+		}
+	}
+
+	private void cancel(long groupID) throws IOException {
+		if (null == ingest) {
+			scheduler.cancelMessageGroup(groupID);
+		} else {
+			ingest.cancel(groupID);
+			ingest.sync();
+		}
+	}
+
+	private void terminate(long groupID) throws IOException {
+		if (null == ingest) {
+			scheduler.terminateMessageGroup(groupID);
+		} else {
+			ingest.terminate(groupID);
+			ingest.sync();
+		}
+	}
+
+	//Finish what has completed and dispatch until neither frees nor takes anything more. A gateway failure is
+	//completed during the dispatch so its resource is only back after another drain.
+	private void step() throws InterruptedException {
+		do {
+			scheduler.drainCompletions();
+		} while (scheduler.dispatch() > 0);
+	}
+
+	//Run every completion and lease tick due up to the given time
+	private void advance(long time) throws InterruptedException {
+		for (;;) {
+			long next = running.isEmpty() ? Long.MAX_VALUE : running.peek().time;
+			long tick = leaseTick > 0 && inFlight() ? (now / leaseTick + 1) * leaseTick : Long.MAX_VALUE;
+			if (Math.min(next, tick) > time || Math.min(next, tick) == Long.MAX_VALUE) {
+				break;
+			}
+			if (tick < next) {
+				now = tick;
+				scheduler.expireLeases();
+			} else {
+				completed(running.poll());
+			}
+			step();
+		}
+		if (time != Long.MAX_VALUE) {
+			now = time;
+		}
+	}
+
+	private void completed(Completion c) {
+		now = c.time;
+		for (int i = 0; i < c.msgs.size(); i++) {
+			Message msg = c.msgs.get(i);
+			if (hangRate > 0 && random.nextDouble() < hangRate) {
+				//Never completed, only a lease gets the resource back
+				hung++;
+				continue;
+			}
+			if (retryRate > 0 && random.nextDouble() < retryRate) {
+				msg.completed(c.attempts[i], Outcome.RETRY);
+				continue;
+			}
+			serviceLatency.record(now - msg.getDispatchTime());
+			totalLatency.record(now - msg.getTime());
+			msg.completed(c.attempts[i], Outcome.SUCCESS);
+		}
+	}
+
+	//Whether any shard has a resource out, which may be a message that will only come back when its lease expires
+	private boolean inFlight() {
+		for (int i = 0; i < scheduler.getShardCount(); i++) {
+			if (scheduler.getMetrics(i).getUsedResources() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public List<Long> getOrder() {
+		return order;
+	}
+
+	public void report(long wallMillis) {
+		long completed = 0, failed = 0, retried = 0, expired = 0, borrowed = 0, hits = 0, misses = 0, changes = 0;
+		for (int i = 0; i < scheduler.getShardCount(); i++) {
+			SchedulerMetrics m = scheduler.getMetrics(i);
+			completed += m.getCompleted();
+			failed += m.getFailed();
+			retried += m.getRetried();
+			expired += m.getExpiredLeases();
+			borrowed += m.getBorrowedResources();
+			hits += m.getAffinityHits();
+			misses += m.getAffinityMisses();
+			changes += m.getResourceLimitChanges();
+		}
+		System.out.println("Messages added ["+added+"] rejected ["+rejected+"] dispatched ["+dispatched+"] completed ["+completed+"] failed ["+failed+"] retried ["+retried+"]");
+		System.out.println("Leases expired ["+expired+"] hung ["+hung+"] borrowed ["+borrowed+"] affinity hits ["+hits+"] misses ["+misses+"] limit changes ["+changes+"]");
+		double seconds = now / 1000.0;
+		System.out.println(String.format("Virtual time [%d] ms, throughput [%.1f] messages/s, simulated in [%d] ms",
+				now, seconds > 0 ? completed / seconds : 0.0, wallMillis));
+		printLatency("Queue latency", queueLatency);
+		printLatency("Service latency", serviceLatency);
+		printLatency("End to end latency", totalLatency);
+		if (order.size() <= MAX_ORDER) {
+			StringBuilder sb = new StringBuilder();
+			for (Long g : order) {
+				sb.append("(").append(g).append(")");
+			}
+			System.out.println("Order ["+sb+"]");
+		}
+	}
+
+	private static void printLatency(String name, LatencyHistogram h) {
+		System.out.println(String.format("%-19s ms mean [%.1f] p50 [%d] p99 [%d] p99.9 [%d] max [%d]",
+				name, h.getMean(), h.getPercentile(50), h.getPercentile(99), h.getPercentile(99.9), h.getMax()));
+	}
+
+	//A scenario file or inline commands with the expected order, null if nothing is expected
+	static class Scenario {
+		final String name;
+		final List<String> commands = new ArrayList<String>();
+		List<Long> expected = null;
+
+		Scenario(String name) {
+			this.name = name;
+		}
+
+		//Expands cmd*n and picks out the expect line
+		void parse(String line) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#") || line.startsWith("//")) {
+				return;
+			}
+			if (line.toLowerCase().startsWith("expect")) {
+				expected = new ArrayList<Long>();
+				for (String g : line.substring("expect".length()).split("[,\\s]+")) {
+					if (g.length() > 0) {
+						expected.add(Long.valueOf(g));
+					}
+				}
+				return;
+			}
+			for (String c : line.split("\\s+")) {
+				int star = c.indexOf('*');
+				int repeat = 1;
+				if (star > 0) {
+					repeat = Integer.valueOf(c.substring(star + 1));
+					c = c.substring(0, star);
+				}
+				for (int i = 0; i < repeat; i++) {
+					commands.add(c);
+				}
+			}
+		}
+
+		static Scenario load(File file) throws IOException {
+			Scenario s = new Scenario(file.getName());
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					s.parse(line);
+				}
+			} finally {
+				in.close();
+			}
+			return s;
+		}
+	}
+
+	private static Properties loadProperties(String configFile) throws IOException {
+		Properties properties = new Properties();
+		InputStream is = null == configFile ? Simulation.class.getClassLoader().getResourceAsStream("scheduler.properties")
+				: new FileInputStream(configFile);
+		if (null != is) {
+			try {
+				properties.load(is);
+			} finally {
+				is.close();
+			}
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0 || args[0].toLowerCase().equals("help")) {
+			System.out.println("Usage: Simulation [-config file] [-seed n] [key=value ...] scenario.scn ... | commands");
+			System.out.println("Runs each scenario file, or the Tester commands given, through the Scheduler on a virtual clock");
+			System.out.println("Wx - wait x virtual milliseconds, Ux - message for a random one of x groups, Xx - cancel group x");
+			System.out.println("Ex - end group x without a last message, I - send M/T/X/E over a localhost ingest connection");
+			System.out.println("cmd*n - repeat a command n times, expect 1,2,... - the group order to check for");
+			System.exit(0);
+		}
+		String configFile = null;
+		long seed = 1;
+		Properties overrides = new Properties();
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		Scenario inline = null;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-config")) {
+				configFile = args[++i];
+			} else if (a.equals("-seed")) {
+				seed = Long.valueOf(args[++i]);
+			} else if (a.indexOf('=') > 0) {
+				overrides.setProperty(a.substring(0, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+			} else if (new File(a).isFile()) {
+				scenarios.add(Scenario.load(new File(a)));
+			} else {
+				if (null == inline) {
+					inline = new Scenario("command line");
+					scenarios.add(inline);
+				}
+				inline.parse(a);
+			}
+		}
+		Properties properties = loadProperties(configFile);
+		properties.putAll(overrides);
+		properties.setProperty("log.level", properties.getProperty("simulator.log.level", "WARNING"));
+		properties.remove("log.async");
+		//Nothing from a real run should be restored into the simulation, or written out at the end
+		File backup = File.createTempFile("simulation", ".bin");
+		backup.delete();
+		properties.setProperty("backup.file", backup.getPath());
+		//Kept apart from the spill directory of a real run
+		File spill = new File(backup.getPath() + ".spill");
+		String spillDir = properties.getProperty("spill.dir");
+		if (null != spillDir && spillDir.length() > 0) {
+			properties.setProperty("spill.dir", spill.getPath());
+		}
+		//The simulation dispatches on the thread that adds, so nothing could make room for a blocked add
+		if (properties.getProperty("queue.overflow", "block").equalsIgnoreCase("block")) {
+			properties.setProperty("queue.overflow", "reject");
+		}
+		int failures = 0;
+		for (Scenario s : scenarios) {
+			System.out.println("Scenario ["+s.name+"]");
+			//A new Scheduler with empty queues for each scenario
+			Simulation sim = new Simulation(properties, seed);
+			long start = System.currentTimeMillis();
+			sim.run(s.commands);
+			sim.report(System.currentTimeMillis() - start);
+			if (null != s.expected) {
+				if (s.expected.equals(sim.getOrder())) {
+					System.out.println("PASSED expected order");
+				} else {
+					failures++;
+					System.out.println("FAILED expected order "+s.expected);
+				}
+			}
+			System.out.println();
+		}
+		delete(spill);
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (null != files) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,141 @@
+package com.jpm.test;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jpm.queue.BatchGateway;
+import com.jpm.queue.Log;
+import com.jpm.queue.Message;
+import com.jpm.queue.Outcome;
+
+//Load test stand in for a real gateway. Each message holds a simulated resource for a time taken from the
+//configured LatencyModel and a share of sends fail, both set from the simulator properties.
+//A batch holds one resource for a single latency, as a downstream that takes batches cheaply would.
+//Switching a resource to another group adds simulator.cold.ms, standing in for a downstream session going cold.
+//On virtual threads each send sleeps on its own thread. Without them the completion is scheduled for when the latency
+//is up, so a small pool serves any number in flight.
+public class SimulatorGateway implements BatchGateway {
+
+	private LatencyModel latency = null;
+	private double failureRate = 0.0;
+	private double retryRate = 0.0;
+	private double hangRate = 0.0;
+	private long coldMillis = 0;
+	//Group each slot last served
+	private final ConcurrentHashMap<Integer, Long> warm = new ConcurrentHashMap<Integer, Long>();
+	//Only one of these is set
+	private ExecutorService executor = null;
+	private ScheduledExecutorService scheduler = null;
+
+	public void init(Properties properties) throws Exception {
+		latency = LatencyModel.fromProperties(properties);
+		failureRate = Double.valueOf(properties.getProperty("simulator.failure.rate", "0"));
+		retryRate = Double.valueOf(properties.getProperty("simulator.retry.rate", "0"));
+		hangRate = Double.valueOf(properties.getProperty("simulator.hang.rate", "0"));
+		coldMillis = Long.valueOf(properties.getProperty("simulator.cold.ms", "0"));
+		boolean virtual = Boolean.valueOf(properties.getProperty("simulator.virtual", "true"));
+		int threads = Integer.valueOf(properties.getProperty("simulator.threads", "4"));
+		executor = virtual ? newVirtualExecutor() : null;
+		if (null == executor) {
+			scheduler = Executors.newScheduledThreadPool(threads, new DaemonFactory());
+			Log.logger.info("Simulator completing resources on a scheduled pool of ["+threads+"] threads");
+		} else {
+			Log.logger.info("Simulator running resources on virtual threads");
+		}
+	}
+
+	public void send(Message msg) throws Exception {
+		sendBatch(Collections.singletonList(msg));
+	}
+
+	public void sendBatch(List<Message> msgs) throws Exception {
+		if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+			throw new Exception("Simulated gateway failure");
+		}
+		Resource resource = new Resource(msgs);
+		if (null == scheduler) {
+			executor.execute(resource);
+		} else {
+			scheduler.schedule(resource, resource.millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	//Virtual threads are only there from Java 21 so look the factory method up rather than link to it
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private class Resource implements Runnable {
+
+		private List<Message> msgs;
+		//Which send of each message this is, so a completion after its lease has expired is ignored
+		private int[] attempts;
+		//How long the resource is held, taken when it is sent
+		private long millis;
+
+		public Resource(List<Message> msgs) {
+			this.msgs=msgs;
+			attempts = new int[msgs.size()];
+			for (int i = 0; i < attempts.length; i++) {
+				attempts[i] = msgs.get(i).getAttempt();
+			}
+			millis = latency.nextMillis(ThreadLocalRandom.current());
+			if (coldMillis > 0) {
+				Message first = msgs.get(0);
+				Long last = warm.put(first.getSlot(), first.getGroupID());
+				if (null == last || last != first.getGroupID()) {
+					millis += coldMillis;
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			if (null == scheduler) {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					//This should only happen in process shutdown
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (int j = 0; j < msgs.size(); j++) {
+				if (hangRate > 0 && ThreadLocalRandom.current().nextDouble() < hangRate) {
+					//Never completed, only a lease gets the resource back
+					continue;
+				}
+				if (retryRate > 0 && ThreadLocalRandom.current().nextDouble() < retryRate) {
+					msgs.get(j).completed(attempts[j], Outcome.RETRY);
+				} else {
+					msgs.get(j).completed(attempts[j], Outcome.SUCCESS);
+				}
+			}
+		}
+	}
+
+	private static class DaemonFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SimulatedResource-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}